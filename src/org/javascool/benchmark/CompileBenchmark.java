@@ -0,0 +1,114 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.benchmark;
+
+import org.javascool.core.JarManager;
+import org.javascool.core.Java2Class;
+import org.javascool.core.Jvs2Java;
+import org.javascool.core.Translation;
+import org.javascool.tools.FileManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Compile benchmark : compares the compilation of a typical JVS program through temporary files and in memory with pooled javac contexts.
+ * <p>The <tt>baseline</tt> mode runs a new system compiler task per compilation through temporary files, without the compiler pool,
+ * the <tt>file</tt> and <tt>memory</tt> modes use the pooled compilers of {@link Java2Class}. The temporary directories are removed after each run.</p>
+ * <p>Each mode compiles the same translated program <tt>runs</tt> times, and prints the first compilation time, then the median and 90th percentile of the other ones.
+ * The first compilation of the second mode is already warmed up by the first mode : give the mode to compare cold starts.</p>
+ * <p>Usage : <tt>java -cp webjavac.jar org.javascool.benchmark.CompileBenchmark [baseline|file|memory] [runs]</tt>, all modes and 50 runs by default.</p>
+ *
+ * @author Philippe VIENNE
+ */
+public class CompileBenchmark {
+    // @factory
+    private CompileBenchmark() {
+    }
+
+    // A typical JVS program : input, loops and output
+    private static final String PROGRAM = "void main() {\n  int n = readInteger(\"n ?\");\n  for(int i = 0; i < 10; i = i + 1) {\n    println(\"Hello \" + i * n);\n  }\n" +
+            "  double s = 0;\n  while (s < 10) { s = s + sqrt(2); }\n  println(s);\n}\n";
+
+    /**
+     * Runs the benchmark and prints its times in milliseconds.
+     *
+     * @param usage The mode, <tt>baseline</tt>, <tt>file</tt> or <tt>memory</tt>, and the number of runs
+     */
+    public static void main(String[] usage) {
+        String[] modes = usage.length > 0 ? new String[]{usage[0]} : new String[]{"baseline", "file", "memory"};
+        int runs = Math.max(2, usage.length > 1 ? Integer.parseInt(usage[1]) : 50);
+        String[] path = System.getProperty("java.class.path").split(File.pathSeparator);
+        Translation translation = new Jvs2Java().translateProgram(PROGRAM);
+        PrintStream out = System.out;
+        // The compiler messages are not part of the measure
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            for (String mode : modes) {
+                long[] times = new long[runs];
+                for (int i = 0; i < runs; i++) {
+                    long start = System.nanoTime();
+                    boolean success;
+                    if ("baseline".equals(mode) || "file".equals(mode)) {
+                        File dir = FileManager.createTempDir("bench");
+                        try {
+                            String javaFile = dir + File.separator + translation.getClassName() + ".java";
+                            FileManager.save(javaFile, translation.getJavaCode());
+                            success = "file".equals(mode) ? Java2Class.compile(new String[]{javaFile}, false, path) : compileWithoutPool(javaFile, path);
+                        } finally {
+                            JarManager.rmDir(dir);
+                        }
+                    } else if ("memory".equals(mode)) {
+                        success = Java2Class.compileInMemory(translation.getClassName(), translation.getJavaCode(), false, path).isSuccess();
+                        Java2Class.release(translation.getClassName());
+                    } else {
+                        throw new IllegalArgumentException("Unknown mode " + mode);
+                    }
+                    if (!success) {
+                        throw new IllegalStateException("Compilation failed in " + mode + " mode");
+                    }
+                    times[i] = System.nanoTime() - start;
+                }
+                long first = times[0];
+                Arrays.sort(times, 1, runs);
+                out.printf("%-8s runs=%d first=%.1fms median=%.1fms p90=%.1fms%n", mode, runs, first / 1e6,
+                        times[1 + (runs - 1) / 2] / 1e6, times[1 + (runs - 1) * 9 / 10] / 1e6);
+            }
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    // Compiles a file with a new compiler task of the system compiler, as before the compiler pool
+    private static boolean compileWithoutPool(String javaFile, String[] path) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new IllegalStateException("No system Java compiler, run the benchmark with a JDK");
+        }
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : path)
+            classPath.append(classPath.length() == 0 ? "" : File.pathSeparator).append(entry);
+        return javac.run(null, new ByteArrayOutputStream(), new ByteArrayOutputStream(), "-g", "-nowarn", "-cp", classPath.toString(), javaFile) == 0;
+    }
+}
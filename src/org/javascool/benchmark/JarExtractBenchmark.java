@@ -0,0 +1,109 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.benchmark;
+
+import org.javascool.core.JarManager;
+import org.javascool.tools.FileManager;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+
+/**
+ * Jar extraction benchmark : compares the previous extraction, which read the jar as a stream through 2 KB buffers, with {@link JarManager#jarExtract(String, String)}.
+ * <p>The two modes are alternated, each run extracts the whole jar into a new temporary directory which is then removed ; the median and 90th percentile of each mode are printed.</p>
+ * <p>Usage : <tt>java -cp webjavac.jar org.javascool.benchmark.JarExtractBenchmark [jar] [runs]</tt>, <tt>lib/javac.jar</tt> and 41 runs by default.</p>
+ *
+ * @author Philippe VIENNE
+ */
+public class JarExtractBenchmark {
+    // @factory
+    private JarExtractBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark and prints its times in milliseconds.
+     *
+     * @param usage The jar to extract, and the number of runs of each mode
+     */
+    public static void main(String[] usage) throws IOException {
+        String jar = usage.length > 0 ? usage[0] : "lib" + File.separator + "javac.jar";
+        int runs = Math.max(1, usage.length > 1 ? Integer.parseInt(usage[1]) : 41);
+        if (!new File(jar).isFile()) {
+            throw new IllegalArgumentException("No jar " + jar);
+        }
+        long[] previous = new long[runs], current = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            previous[i] = time(jar, false);
+            current[i] = time(jar, true);
+        }
+        print("previous", jar, previous);
+        print("current", jar, current);
+    }
+
+    // Extracts the jar in a new temporary directory, removed afterwards, and returns the time in nanoseconds
+    private static long time(String jar, boolean current) throws IOException {
+        File dir = FileManager.createTempDir("jarextract");
+        try {
+            long start = System.nanoTime();
+            if (current) {
+                JarManager.jarExtract(jar, dir.getPath());
+            } else {
+                previousExtract(jar, dir.getPath());
+            }
+            return System.nanoTime() - start;
+        } finally {
+            JarManager.rmDir(dir);
+        }
+    }
+
+    private static void print(String mode, String jar, long[] times) {
+        Arrays.sort(times);
+        System.out.printf("extract %-8s jar=%s runs=%d median=%.1fms p90=%.1fms%n", mode, new File(jar).getName(), times.length,
+                times[times.length / 2] / 1e6, times[times.length * 9 / 10] / 1e6);
+    }
+
+    // Copy of the previous JarManager.jarExtract : one stream over the jar, a mkdirs per file and 2 KB buffers
+    private static void previousExtract(String jarFile, String destDir) throws IOException {
+        JarInputStream jip = new JarInputStream(new FileInputStream(jarFile));
+        try {
+            JarEntry je;
+            while ((je = jip.getNextJarEntry()) != null) {
+                if (!je.isDirectory() && !je.getName().contains("META-INF")) {
+                    File dest = new File(destDir + File.separator + je.getName());
+                    dest.getParentFile().mkdirs();
+                    OutputStream o = new BufferedOutputStream(new FileOutputStream(dest), 2048);
+                    byte data[] = new byte[2048];
+                    for (int c; (c = jip.read(data, 0, 2048)) != -1; )
+                        o.write(data, 0, c);
+                    o.close();
+                    jip.closeEntry();
+                }
+            }
+        } finally {
+            jip.close();
+        }
+    }
+}
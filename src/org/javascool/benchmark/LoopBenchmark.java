@@ -0,0 +1,105 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.benchmark;
+
+import org.javascool.core.Compilation;
+import org.javascool.core.Execution;
+import org.javascool.core.ExecutionEngine;
+import org.javascool.core.Java2Class;
+import org.javascool.core.Jvs2Java;
+import org.javascool.core.Translation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loop benchmark : compares the loops translated with a <tt>sleep(1)</tt> per turn and with a cooperative cancellation check.
+ * <p>For each translation, the loop throughput of a counting program is printed, then the time to stop an endless loop cancelled on an {@link ExecutionEngine}.</p>
+ * <p>Usage : <tt>java -cp webjavac.jar org.javascool.benchmark.LoopBenchmark</tt></p>
+ *
+ * @author Philippe VIENNE
+ */
+public class LoopBenchmark {
+    // @factory
+    private LoopBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark and prints its throughputs and latencies.
+     *
+     * @param usage Unused
+     */
+    public static void main(String[] usage) throws InterruptedException {
+        String[] path = System.getProperty("java.class.path").split(File.pathSeparator);
+        PrintStream err = System.err;
+        // The translation messages are not part of the measure
+        System.setErr(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            for (boolean cooperative : new boolean[]{false, true}) {
+                String name = cooperative ? "cooperative" : "sleep(1)";
+                Jvs2Java translator = new Jvs2Java().setCooperativeCancellation(cooperative);
+                int turns = cooperative ? 200000000 : 2000;
+                Runnable counter = Java2Class.load(compile(translator, "void main() {\n long s = 0; int i = 0;\n while (i < " + turns + ") {\n  s = s + i % 7; i = i + 1;\n }\n" +
+                        " if (s == 42) println(s);\n}\n", path));
+                counter.run();
+                long start = System.nanoTime();
+                counter.run();
+                long time = System.nanoTime() - start;
+                System.out.printf("loop %-11s turns=%d %dms %.0f turns/s%n", name, turns, time / 1000000, turns / (time / 1e9));
+                // Stop latency of an endless loop
+                final Runnable endless = Java2Class.load(compile(translator, "void main() {\n long s = 0;\n while (true) {\n  s = s + 1;\n }\n}\n", path));
+                final CountDownLatch ended = new CountDownLatch(1);
+                ExecutionEngine engine = new ExecutionEngine(1, 1, false);
+                try {
+                    Execution execution = engine.submit("loop", new Runnable() {
+                        public void run() {
+                            try {
+                                endless.run();
+                            } finally {
+                                ended.countDown();
+                            }
+                        }
+                    });
+                    Thread.sleep(500);
+                    start = System.nanoTime();
+                    execution.cancel(true);
+                    boolean stopped = ended.await(5, TimeUnit.SECONDS);
+                    System.out.printf("loop %-11s endless %s %.3fms after cancel%n", name, stopped ? "stopped" : "not stopped", (System.nanoTime() - start) / 1e6);
+                } finally {
+                    engine.shutdown();
+                }
+            }
+        } finally {
+            System.setErr(err);
+        }
+    }
+
+    // Translates and compiles a program
+    private static Compilation compile(Jvs2Java translator, String code, String[] path) {
+        Translation translation = translator.translateProgram(code);
+        Compilation compilation = Java2Class.compileInMemory(translation.getClassName(), translation.getJavaCode(), false, path);
+        if (!compilation.isSuccess()) {
+            throw new IllegalStateException("Compilation failed : " + compilation.getConsole());
+        }
+        return compilation;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.benchmark;
+
+import org.javascool.core.Translator;
+
+/**
+ * Scanner benchmark : measures the time to find the end of a braced block in adversarial inputs of growing size.
+ * <p>The inputs are deeply nested blocks, blocks full of comments and escaped strings, and blocks with unterminated comments.
+ * For each one the best time of 7 scans by {@link Translator#scanConstruct(String, int, String, String, String, boolean, boolean)} is printed.</p>
+ * <p>Usage : <tt>java -cp webjavac.jar org.javascool.benchmark.ScannerBenchmark [size ..]</tt>, 1000, 10000 and 50000 by default.</p>
+ *
+ * @author Philippe VIENNE
+ */
+public class ScannerBenchmark {
+    // @factory
+    private ScannerBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark and prints its times in microseconds.
+     *
+     * @param usage The numbers of repeated constructs of the inputs
+     */
+    public static void main(String[] usage) {
+        int[] sizes = {1000, 10000, 50000};
+        if (usage.length > 0) {
+            sizes = new int[usage.length];
+            for (int i = 0; i < usage.length; i++)
+                sizes[i] = Integer.parseInt(usage[i]);
+        }
+        for (int n : sizes) {
+            StringBuilder nested = new StringBuilder(), comments = new StringBuilder("{"), unterminated = new StringBuilder("{");
+            for (int i = 0; i < n; i++)
+                nested.append("{ x; ");
+            for (int i = 0; i < n; i++)
+                nested.append("} ");
+            for (int i = 0; i < n; i++)
+                comments.append("/* c */ a = \"s\\\"t\"; // l\n");
+            for (int i = 0; i < n; i++)
+                unterminated.append("a /* ");
+            print("nested", n, nested.toString());
+            print("comments", n, comments.append("}").toString());
+            print("unterminated", n, unterminated.append("}").toString());
+        }
+    }
+
+    // Prints the best time of 7 scans of an input
+    private static void print(String name, int n, String input) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 7; run++) {
+            long start = System.nanoTime();
+            Translator.scanConstruct(input, 0, "{", "}", null, true, true);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("scan %-12s n=%d %dus%n", name, n, best / 1000);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.benchmark;
+
+import org.javascool.core.Compilation;
+import org.javascool.core.CompilationCache;
+import org.javascool.core.CompileSession;
+import org.javascool.core.Java2Class;
+import org.javascool.core.Jvs2Java;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Soak test : compiles and runs distinct programs in one editor session, and prints the memory used as the cycles go.
+ * <p>Each cycle compiles a new program, with an inner class, in the same {@link CompileSession}, which releases the previous one, then runs it.
+ * Every eighth of the cycles, after a full garbage collection, the heap, the metaspace, the loaded classes and the program statistics of {@link Java2Class} are printed :
+ * they must stay flat.</p>
+ * <p>Usage : <tt>java -cp webjavac.jar org.javascool.benchmark.SoakTest [cycles] [cacheSize]</tt>, 800 cycles and no compilation cache by default,
+ * the cache size is in bytes.</p>
+ *
+ * @author Philippe VIENNE
+ */
+public class SoakTest {
+    // @factory
+    private SoakTest() {
+    }
+
+    /**
+     * Runs the soak test and prints the memory used.
+     *
+     * @param usage The number of cycles, and the size of the compilation cache
+     */
+    public static void main(String[] usage) {
+        int cycles = Math.max(8, usage.length > 0 ? Integer.parseInt(usage[0]) : 800);
+        long cacheSize = usage.length > 1 ? Long.parseLong(usage[1]) : 0;
+        String[] path = System.getProperty("java.class.path").split(File.pathSeparator);
+        CompileSession session = new CompileSession(new Jvs2Java(), new CompilationCache(cacheSize), false, path);
+        PrintStream out = System.out, err = System.err;
+        // The messages of the compiler and of the programs are not part of the measure
+        PrintStream none = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        System.setOut(none);
+        System.setErr(none);
+        try {
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            long start = System.nanoTime();
+            for (int i = 1; i <= cycles; i++) {
+                StringBuilder code = new StringBuilder("void main() { int s = " + i + ";\n");
+                for (int k = 0; k < 20; k++)
+                    code.append("  s = s + f(").append(k).append(");\n");
+                code.append("  println(s); new Thread(new Runnable() { public void run() { } }).run(); }\nint f(int x) { return x * 2; }\nclass Point { int x, y; }\n");
+                Compilation compilation = session.compile(code.toString()).getCompilation();
+                if (!compilation.isSuccess()) {
+                    throw new IllegalStateException("Compilation failed : " + compilation.getConsole());
+                }
+                Java2Class.load(compilation).run();
+                if (i % (cycles / 8) == 0) {
+                    System.gc();
+                    System.gc();
+                    out.printf("soak cycles=%d time=%.1fs heap=%.1fMB metaspace=%.1fMB classes=%d registered=%d liveLoaders=%d liveClasses=%d%n",
+                            i, (System.nanoTime() - start) / 1e9, memory.getHeapMemoryUsage().getUsed() / 1048576.0, Java2Class.getMetaspaceUsed() / 1048576.0,
+                            ManagementFactory.getClassLoadingMXBean().getLoadedClassCount(), Java2Class.getRegisteredCount(), Java2Class.getLiveLoaders(),
+                            Java2Class.getLiveClasses());
+                }
+            }
+        } finally {
+            session.close();
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+}
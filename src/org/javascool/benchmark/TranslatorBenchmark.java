@@ -0,0 +1,149 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.benchmark;
+
+import org.javascool.core.Jvs2Java;
+import org.javascool.tools.FileManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Translator benchmark : compares the translation time of the previous, regular expression based, translator with the current one.
+ * <p>Each program is a <tt>main</tt> function whose lines are output statements and declarations, one line in seven being a <tt>while</tt> loop.
+ * For each size and translator, the translation is warmed up 20 times, then the mean time of 50 translations is printed.</p>
+ * <p>Usage : <tt>java -cp webjavac.jar org.javascool.benchmark.TranslatorBenchmark [lines ..]</tt>, 1000, 10000 and 50000 lines by default.</p>
+ *
+ * @author Philippe VIENNE
+ */
+public class TranslatorBenchmark {
+    // @factory
+    private TranslatorBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark and prints its times in milliseconds.
+     *
+     * @param usage The numbers of lines of the translated programs
+     */
+    public static void main(String[] usage) {
+        int[] sizes = {1000, 10000, 50000};
+        if (usage.length > 0) {
+            sizes = new int[usage.length];
+            for (int i = 0; i < usage.length; i++)
+                sizes[i] = Integer.parseInt(usage[i]);
+        }
+        Jvs2Java translator = new Jvs2Java();
+        PrintStream out = System.out, err = System.err;
+        // The translation messages are not part of the measure
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        System.setErr(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            for (int lines : sizes) {
+                String code = getProgram(lines);
+                for (boolean current : new boolean[]{false, true}) {
+                    for (int i = 0; i < 20; i++)
+                        translate(translator, current, code);
+                    int runs = 50;
+                    long start = System.nanoTime();
+                    for (int i = 0; i < runs; i++)
+                        translate(translator, current, code);
+                    out.printf("translation %-8s lines=%d size=%dKB %.2fms%n", current ? "current" : "previous", lines, code.length() / 1024, (System.nanoTime() - start) / 1e6 / runs);
+                }
+            }
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+
+    // Translates a program with the current or the previous translator
+    private static String translate(Jvs2Java translator, boolean current, String code) {
+        return current ? translator.translate(code) : translatePrevious(code);
+    }
+
+    // Copy of the previous Jvs2Java.translate(), based on regular expressions, without proglet translator
+    private static String translatePrevious(String jvsCode) {
+        String text = jvsCode.replace((char) 160, ' ');
+        if (!text.replaceAll("[ \n\r\t]+", " ").matches(".*void[ ]+main[ ]*\\([ ]*\\).*")) {
+            if (text.replaceAll("[ \n\r\t]+", " ").matches(".*main[ ]*\\([ ]*\\).*")) {
+                System.out.println("Attention: il faut mettre \"void\" devant \"main()\" pour que le programme puisse se compiler");
+                text = text.replaceFirst("main[ ]*\\([ ]*\\)", "void main()");
+            } else {
+                System.out.println("Attention: il faut un block \"void main()\" pour que le programme puisse se compiler");
+                text = "\nvoid main() {\n" + text + "\n}\n";
+            }
+        }
+        String[] lines = text.split("\n");
+        StringBuilder head = new StringBuilder();
+        StringBuilder body = new StringBuilder();
+        for (String line : lines) {
+            if (line.matches("^\\s*(import|package)[^;]*;\\s*$")) {
+                head.append(line);
+                body.append("//").append(line).append("\n");
+                if (line.matches("^\\s*package[^;]*;\\s*$")) {
+                    System.out.println("Attention: on ne peut normalement pas définir de package Java en JavaScool\n le programme risque de ne pas s'exécuter correctement");
+                }
+            } else if (line.matches("^\\s*include[^;]*;\\s*$")) {
+                String name = line.replaceAll("^\\s*include([^;]*);\\s*$", "$1").trim();
+                body.append("/* include " + name + "; */ ");
+                try {
+                    String include = FileManager.load(name + ".jvs");
+                    for (String iline : include.split("\n"))
+                        if (iline.matches("^\\s*import[^;]*;\\s*$")) {
+                            head.append(iline);
+                        } else if (!iline.matches("^\\s*package[^;]*;\\s*$")) {
+                            body.append(iline);
+                        }
+                } catch (Exception e) {
+                    body.append(" - Impossible de lire correctement le fichier  inclure !!");
+                }
+                body.append("\n");
+            } else {
+                body.append(line).append("\n");
+            }
+        }
+        head.append("import static java.lang.Math.*;");
+        head.append("import static org.javascool.macros.Macros.*;");
+        head.append("import static org.javascool.macros.Stdin.*;");
+        head.append("import static org.javascool.macros.Stdout.*;");
+        head.append("public class JvsToJavaTranslated0 implements Runnable{");
+        head.append("  private static final long serialVersionUID = 1L;");
+        head.append("  public void run() {");
+        head.append("   /*try{*/ main(); /*} catch(Throwable e) { ");
+        head.append("    if (e.toString().matches(\".*Interrupted.*\"))System.out.println(\"\\n-------------------\\nProggramme arrêté !\\n-------------------\\n\");");
+        head.append("    else System.out.println(\"\\n-------------------\\nErreur lors de l'exécution de la proglet\\n\\n-------------------\\n\");}*/");
+        head.append("}");
+        String finalBody = body.toString().
+                replaceAll("(while.*\\{)", "$1 sleep(1);");
+        System.err.println(
+                "\n-------------------\nCode java généré\n-------------------\n" +
+                        head.toString().replaceAll("([{;])", "$1\n") + "\n" + finalBody + "}" +
+                        "\n----------------------------------------------------------\n");
+        return head.toString() + finalBody + "}";
+    }
+
+    // Generates a program of the given number of lines
+    private static String getProgram(int lines) {
+        StringBuilder code = new StringBuilder("void main() {\n");
+        for (int i = 0; i < lines; i++)
+            code.append(i % 7 == 0 ? "  while (i < 10) { i = i + 1; }\n" : "  println(\"line " + i + "\"); int v" + i + " = " + i + ";\n");
+        return code.append("}\n").toString();
+    }
+}
@@ -0,0 +1,66 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Décrit le résultat d'une compilation en mémoire d'un code source Java.
+ * <p>Le bytecode des classes obtenues est conservé en mémoire, rien n'est écrit dans le système de fichier.</p>
+ *
+ * @serial exclude
+ * @see Java2Class#compileInMemory(java.util.Map, boolean, String[])
+ * @see <a href="Compilation.java.html">code source</a>
+ */
+public class Compilation {
+    Compilation(String className, Map<String, byte[]> classes, List<CompileDiagnostic> diagnostics, String console) {
+        this.className = className;
+        this.classes = Collections.unmodifiableMap(classes);
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+        this.console = console;
+    }
+
+    private final String className;
+    private final Map<String, byte[]> classes;
+    private final List<CompileDiagnostic> diagnostics;
+    private final String console;
+
+    /**
+     * Renvoie le nom de la classe principale compilée.
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Renvoie le bytecode des classes compilées, indexé par leur nom binaire (ex: <tt>Foo$1</tt>).
+     * <p>La table est vide si la compilation a échoué.</p>
+     */
+    public Map<String, byte[]> getClasses() {
+        return classes;
+    }
+
+    /**
+     * Renvoie les erreurs de compilation, la liste est vide en cas de succès.
+     */
+    public List<CompileDiagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Renvoie les messages de compilation, reformulés en français, ou la chaîne vide si il n'y en a pas.
+     */
+    public String getConsole() {
+        return console;
+    }
+
+    /**
+     * Renvoie true en cas de succès, false si il y a des erreurs de compilation.
+     */
+    public boolean isSuccess() {
+        return diagnostics.isEmpty();
+    }
+}
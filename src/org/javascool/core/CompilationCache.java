@@ -0,0 +1,196 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Mémorise les résultats de compilation en mémoire, indexés par une empreinte du code source Java.
+ * <p>Une même soumission compilée plusieurs fois ne passe qu'une fois par javac : le bytecode et les erreurs de compilation sont conservés.</p>
+ * <p>L'empreinte porte sur le code source traduit, le classpath et les options de compilation.
+ * Le nom de la classe générée, qui change à chaque traduction, n'en fait pas partie.</p>
+ * <p>Le cache est borné en mémoire : les entrées les moins récemment utilisées sont éliminées au delà de la taille maximale.</p>
+ *
+ * @serial exclude
+ * @see <a href="CompilationCache.java.html">code source</a>
+ */
+public class CompilationCache {
+    /**
+     * Crée un cache de compilation.
+     *
+     * @param maxSize La taille mémoire maximale estimée du cache, en octets.
+     */
+    public CompilationCache(long maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * Calcule l'empreinte d'un code source à compiler.
+     *
+     * @param className Le nom de la classe principale, remplacé par une constante dans l'empreinte.
+     * @param javaCode  Le code source Java.
+     * @param allErrors Le mode de compilation, qui change les messages de compilation.
+     * @param path      Le classpath de compilation, ou null si non défini.
+     * @return L'empreinte SHA-256 en hexadécimal.
+     */
+    public static String key(String className, String javaCode, boolean allErrors, String[] path) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, anonymize(className, javaCode));
+            update(digest, Boolean.toString(allErrors));
+            for (String option : Java2Class.OPTIONS)
+                update(digest, option);
+            if (path != null) {
+                for (String element : path)
+                    update(digest, element == null ? "" : element);
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest())
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponible : " + e);
+        }
+    }
+
+    /**
+     * Remplace le nom de la classe principale par une constante, uniquement là où il forme un identifiant entier :
+     * <tt>JvsToJavaTranslated1</tt> n'est pas remplacé dans <tt>JvsToJavaTranslated12</tt>.
+     */
+    static String anonymize(String className, String javaCode) {
+        return javaCode.replaceAll("(?<![\\p{javaJavaIdentifierPart}])" + Pattern.quote(className) + "(?![\\p{javaJavaIdentifierPart}])", "\u0000");
+    }
+
+    // Ajoute une chaîne à l'empreinte, suivie d'un séparateur
+    private static void update(MessageDigest digest, String value) {
+        try {
+            digest.update(value.getBytes("UTF-8"));
+            digest.update((byte) 0);
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Renvoie la compilation mémorisée pour une empreinte.
+     *
+     * @param key L'empreinte calculée par {@link #key(String, String, boolean, String[])}.
+     * @return La compilation mémorisée ou null si il n'y en a pas.
+     */
+    public Compilation get(String key) {
+        Compilation compilation;
+        synchronized (entries) {
+            compilation = entries.get(key);
+        }
+        (compilation == null ? misses : hits).incrementAndGet();
+        return compilation;
+    }
+
+    /**
+     * Mémorise une compilation.
+     *
+     * @param key         L'empreinte calculée par {@link #key(String, String, boolean, String[])}.
+     * @param compilation La compilation à mémoriser.
+     */
+    public void put(String key, Compilation compilation) {
+        long weight = weight(key, compilation);
+        if (weight > maxSize) {
+            return;
+        }
+        synchronized (entries) {
+            Compilation previous = entries.put(key, compilation);
+            size += weight - (previous == null ? 0 : weight(key, previous));
+            evict();
+        }
+    }
+
+    /**
+     * Vide le cache.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Définit la taille mémoire maximale du cache, en octets.
+     */
+    public void setMaxSize(long maxSize) {
+        synchronized (entries) {
+            this.maxSize = maxSize;
+            evict();
+        }
+    }
+
+    /**
+     * Renvoie la taille mémoire maximale du cache, en octets.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Renvoie la taille mémoire estimée du cache, en octets.
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /**
+     * Renvoie le nombre d'entrées du cache.
+     */
+    public int getCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Renvoie le nombre de compilations trouvées dans le cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Renvoie le nombre de compilations absentes du cache.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // Élimine les entrées les moins récemment utilisées au delà de la taille maximale
+    private void evict() {
+        for (Iterator<Map.Entry<String, Compilation>> i = entries.entrySet().iterator(); size > maxSize && i.hasNext(); ) {
+            Map.Entry<String, Compilation> entry = i.next();
+            size -= weight(entry.getKey(), entry.getValue());
+            i.remove();
+        }
+    }
+
+    // Estime la taille mémoire d'une entrée
+    private static long weight(String key, Compilation compilation) {
+        long weight = 64 + 2 * (key.length() + compilation.getConsole().length() + compilation.getClassName().length());
+        for (Map.Entry<String, byte[]> clazz : compilation.getClasses().entrySet())
+            weight += 32 + 2 * clazz.getKey().length() + clazz.getValue().length;
+        for (CompileDiagnostic diagnostic : compilation.getDiagnostics())
+            weight += 64 + 2 * diagnostic.getMessage().length() + (diagnostic.getSourceLine() == null ? 0 : 2 * diagnostic.getSourceLine().length());
+        return weight;
+    }
+
+    private final LinkedHashMap<String, Compilation> entries = new LinkedHashMap<String, Compilation>(16, 0.75f, true);
+    private volatile long maxSize;
+    private long size = 0;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+}
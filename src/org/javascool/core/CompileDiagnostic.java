@@ -0,0 +1,233 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Décrit une erreur de compilation signalée par javac.
+ * <p>Les messages les plus courants sont reformulés en français, à l'aide d'une table indexée par le code du diagnostic javac.</p>
+ * <p>Les portions de code de la forme <tt>/*<i>code-jvs</i> @&lt;nojavac*</tt><tt>/<i>code-java-derive</ii>/*@nojavac>*</tt><tt>/</tt> issus de pseudo-code retraduit en Java par un <a href="Translator.html">Translator</a> sont traités pour que seul le <i>code-jvs</i> soit affiché.</p>
+ *
+ * @serial exclude
+ * @see <a href="CompileDiagnostic.java.html">code source</a>
+ */
+public class CompileDiagnostic {
+    /**
+     * Crée la description d'une erreur.
+     *
+     * @param file       Le nom simple du fichier source, ou null si l'erreur n'est pas liée à un fichier.
+     * @param line       Le numéro de ligne, à partir de 1, ou -1 si non défini.
+     * @param column     Le numéro de colonne, à partir de 1, ou -1 si non défini.
+     * @param code       Le code du diagnostic javac (ex: <tt>compiler.err.not.stmt</tt>).
+     * @param message    Le message, reformulé en français si possible.
+     * @param sourceLine La ligne de code source en erreur, ou null si non définie.
+     */
+    public CompileDiagnostic(String file, long line, long column, String code, String message, String sourceLine) {
+        this.file = file;
+        this.line = line;
+        this.column = column;
+        this.code = code;
+        this.message = message;
+        this.sourceLine = sourceLine;
+    }
+
+    private final String file, code, message, sourceLine;
+    private final long line, column;
+
+    /**
+     * Renvoie le nom simple du fichier source, ou null si l'erreur n'est pas liée à un fichier.
+     */
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * Renvoie le numéro de ligne, à partir de 1, ou -1 si non défini.
+     */
+    public long getLine() {
+        return line;
+    }
+
+    /**
+     * Renvoie le numéro de colonne, à partir de 1, ou -1 si non défini.
+     */
+    public long getColumn() {
+        return column;
+    }
+
+    /**
+     * Renvoie le code du diagnostic javac (ex: <tt>compiler.err.not.stmt</tt>).
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Renvoie le message, reformulé en français si possible.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Renvoie la ligne de code source en erreur, ou null si non définie.
+     */
+    public String getSourceLine() {
+        return sourceLine;
+    }
+
+    /**
+     * Met en forme l'erreur pour la console.
+     *
+     * @param withFile Préfixe l'erreur par le nom du fichier, si égal à true.
+     * @return Le message, suivi de la ligne de code source et d'un <tt>^</tt> sous la colonne en erreur.
+     */
+    public String toString(boolean withFile) {
+        StringBuilder text = new StringBuilder();
+        if (line > 0) {
+            if (withFile && file != null) {
+                text.append(file).append(" : erreur de syntaxe ligne ").append(line).append(" :\n ");
+            } else {
+                text.append("Erreur de syntaxe ligne ").append(line).append(" :\n ");
+            }
+        }
+        text.append(message);
+        if (sourceLine != null) {
+            text.append('\n').append(sourceLine).append('\n');
+            for (long c = 1; c < column; c++)
+                text.append(' ');
+            text.append('^');
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toString(true);
+    }
+
+    /**
+     * Met en forme une liste d'erreurs pour la console.
+     *
+     * @param diagnostics Les erreurs à mettre en forme.
+     * @param withFile    Préfixe chaque erreur par le nom du fichier, si égal à true.
+     * @return Le texte des erreurs, ou la chaîne vide si il n'y en a pas.
+     */
+    public static String toString(List<CompileDiagnostic> diagnostics, boolean withFile) {
+        StringBuilder text = new StringBuilder();
+        for (CompileDiagnostic diagnostic : diagnostics) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(diagnostic.toString(withFile));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Convertit les erreurs signalées par javac.
+     *
+     * @param diagnostics Les diagnostics javac, seules les erreurs sont retenues.
+     * @param allErrors   Renvoie toutes les erreur si true, sinon uniquement la première erreur.
+     * @return Les erreurs converties.
+     */
+    static List<CompileDiagnostic> of(List<Diagnostic<? extends JavaFileObject>> diagnostics, boolean allErrors) {
+        List<CompileDiagnostic> errors = new ArrayList<CompileDiagnostic>();
+        Map<JavaFileObject, String[]> sources = new HashMap<JavaFileObject, String[]>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
+            if (diagnostic.getKind() != Diagnostic.Kind.ERROR) {
+                continue;
+            }
+            JavaFileObject source = diagnostic.getSource();
+            String file = null, sourceLine = null;
+            if (source != null) {
+                file = source.getName().substring(Math.max(source.getName().lastIndexOf('/'), source.getName().lastIndexOf('\\')) + 1);
+                if (!sources.containsKey(source)) {
+                    try {
+                        sources.put(source, source.getCharContent(true).toString().split("\n", -1));
+                    } catch (IOException e) {
+                        sources.put(source, new String[0]);
+                    }
+                }
+                String lines[] = sources.get(source);
+                if (0 < diagnostic.getLineNumber() && diagnostic.getLineNumber() <= lines.length) {
+                    sourceLine = nojavac.matcher(lines[(int) diagnostic.getLineNumber() - 1]).replaceAll("$1");
+                }
+            }
+            errors.add(new CompileDiagnostic(file, diagnostic.getLineNumber(), diagnostic.getColumnNumber(), diagnostic.getCode(),
+                    translate(diagnostic.getCode(), diagnostic.getMessage(Locale.ENGLISH)), sourceLine));
+            if (!allErrors) {
+                break;
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Reformule en français un message de javac.
+     *
+     * @param code    Le code du diagnostic javac.
+     * @param message Le message en anglais.
+     * @return Le message reformulé si il est connu, sinon le message inchangé.
+     */
+    public static String translate(String code, String message) {
+        Rewording[] rewordings = frenchRewordings.get(code);
+        if (rewordings != null) {
+            for (Rewording rewording : rewordings) {
+                Matcher matcher = rewording.pattern.matcher(message);
+                if (matcher.find()) {
+                    return matcher.replaceAll(rewording.replacement);
+                }
+            }
+        }
+        return message;
+    }
+
+    // Escape des constructions dérivée d'un Translator
+    private static final Pattern nojavac = Pattern.compile("/\\*(.*)@<nojavac.*@nojavac>\\*/");
+
+    // Reformulation d'un message par une expression régulière précompilée
+    private static class Rewording {
+        private final Pattern pattern;
+        private final String replacement;
+
+        private Rewording(String regex, String replacement) {
+            this.pattern = Pattern.compile(regex);
+            this.replacement = replacement;
+        }
+    }
+
+    // Passage en français des principaux diagnostics, indexés par code de diagnostic javac
+    private static final Map<String, Rewording[]> frenchRewordings = new HashMap<String, Rewording[]>();
+
+    private static void reword(String[] codes, Rewording... rewordings) {
+        for (String code : codes)
+            frenchRewordings.put(code, rewordings);
+    }
+
+    static {
+        reword(new String[]{"compiler.err.not.stmt"},
+                new Rewording("not a statement", "L'instruction n'est pas valide.\n (Il se peut qu'une variable indiquée n'existe pas)"));
+        reword(new String[]{"compiler.err.expected"},
+                new Rewording("';' expected", "Un ';' est attendu (il peut manquer, ou une parenthèse être incorrecte, ..)"));
+        reword(new String[]{"compiler.err.cant.resolve", "compiler.err.cant.resolve.args", "compiler.err.cant.resolve.location", "compiler.err.cant.resolve.location.args"},
+                new Rewording("cannot find symbol\\s*symbol\\s*:\\s*([^\\n]*)[^:]*:\\s*(.*)", "Il y a un symbole non-défini à cette ligne : «$1» (utilisez-vous la bonne proglet ?)"));
+        reword(new String[]{"compiler.err.illegal.start.of.expr"},
+                new Rewording("illegal start of expression", "($0) L'instruction (ou la précédente) est tronquée ou mal écrite"));
+        reword(new String[]{"compiler.err.expected3", "compiler.err.expected4"},
+                new Rewording("class, interface,.* expected", "($0) Il y a probablement une erreur dans les accolades (peut-être trop de '}')"));
+        reword(new String[]{"compiler.err.dot.class.expected"},
+                new Rewording("'.class' expected", "($0) Il manque des accolades ou des parenthèses pour définir l'instruction"));
+        reword(new String[]{"compiler.err.prob.found.req"},
+                new Rewording("incompatible\\Wtypes\\W*found\\W*:\\W([A-Za-z\\.]*)\\Wrequired:\\W([A-Za-z\\.]*)", "Vous avez mis une valeur de type $1 alors qu'il faut une valeur de type $2"),
+                new Rewording("incompatible\\Wtypes\\W*required\\W*:\\W([A-Za-z\\.]*)\\W*found:\\W*([A-Za-z\\.]*)", "Vous avez mis une valeur de type $2 alors qu'il faut une valeur de type $1"),
+                new Rewording("incompatible types: ([A-Za-z\\.]*) cannot be converted to ([A-Za-z\\.]*)", "Vous avez mis une valeur de type $1 alors qu'il faut une valeur de type $2"));
+    }
+}
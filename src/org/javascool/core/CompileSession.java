@@ -0,0 +1,292 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compile au fur et à mesure les versions successives d'un code Jvs en cours d'édition.
+ * <p>Le code traduit est découpé en membres (champs, méthodes, classes internes) dont une forme normalisée, sans commentaires ni espaces superflus, est conservée.
+ * Si aucun membre n'a changé depuis la précédente compilation réussie, celle-ci est réutilisée sans repasser par javac.</p>
+ * <p>Les demandes de compilation qui arrivent pendant une compilation sont regroupées : seule la plus récente est compilée ensuite.</p>
+ * <p>La compilation remplacée par une nouvelle version est libérée, de façon à ce que la mémoire utilisée par une session reste bornée.</p>
+ * <p>Note: javac compile une unité de compilation entière, il n'est pas possible de ne recompiler que les méthodes modifiées ;
+ * dès qu'un membre change, tout le programme est recompilé, en passant par le cache de compilation.</p>
+ *
+ * @serial exclude
+ * @see <a href="CompileSession.java.html">code source</a>
+ */
+public class CompileSession {
+    /**
+     * Crée une session de compilation.
+     *
+     * @param translator La traduction Jvs vers Java utilisée.
+     * @param cache      Le cache de compilation utilisé, ou null si il n'y en a pas.
+     * @param allErrors  Renvoie toutes les erreurs si true, sinon uniquement la première erreur.
+     * @param path       Le classpath de compilation, ou null si non défini.
+     */
+    public CompileSession(Jvs2Java translator, CompilationCache cache, boolean allErrors, String[] path) {
+        this.translator = translator;
+        this.cache = cache;
+        this.allErrors = allErrors;
+        this.path = path;
+    }
+
+    private final Jvs2Java translator;
+    private final CompilationCache cache;
+    private final boolean allErrors;
+    private final String[] path;
+
+    /**
+     * Compile une nouvelle version du code.
+     * <p>Si une compilation est déjà en cours dans cette session, le code est mis en attente, en remplaçant le code déjà en attente, et la méthode retourne immédiatement :
+     * c'est l'appel en cours qui compilera la dernière version et en renverra le résultat.</p>
+     *
+     * @param jvsCode Le code Jvs.
+     * @return Le résultat de la compilation de la dernière version du code, ou null si la compilation a été confiée à l'appel en cours :
+     * l'appelant qui reçoit null doit attendre le résultat de l'appel en cours, ou le lire ensuite par {@link #getCompilation()}.
+     */
+    public Update compile(String jvsCode) {
+        synchronized (this) {
+            pending = jvsCode;
+            if (running) {
+                return null;
+            }
+            running = true;
+        }
+        Update update = null;
+        try {
+            while (true) {
+                String code;
+                synchronized (this) {
+                    if (pending == null) {
+                        running = false;
+                        return update;
+                    }
+                    code = pending;
+                    pending = null;
+                }
+                update = update(code);
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                running = false;
+            }
+            throw e;
+        }
+    }
+
+    // Compile une version du code, en réutilisant la précédente compilation si aucun membre n'a changé
+    private Update update(String jvsCode) {
+        Translation translation = translator.translateProgram(jvsCode);
+        List<String> members = getMembers(CompilationCache.anonymize(translation.getClassName(), translation.getJavaCode()));
+        List<String> changes = new ArrayList<String>();
+        // Les membres et la compilation sont lus ensemble, sous le verrou de close()
+        synchronized (this) {
+            Set<String> previous = new HashSet<String>(this.members);
+            for (String member : members)
+                if (!previous.contains(member)) {
+                    changes.add(getHeading(member));
+                }
+            if (!closed && compilation != null && compilation.isSuccess() && members.equals(this.members)) {
+                reused++;
+                return new Update(compilation, true, changes);
+            }
+        }
+        Compilation compilation = null;
+        String key = null;
+        if (cache != null) {
+            key = CompilationCache.key(translation.getClassName(), translation.getJavaCode(), allErrors, path);
+            compilation = cache.get(key);
+            if (compilation != null) {
+                Java2Class.register(compilation);
+                if (compilation.getConsole().length() > 0) {
+                    System.out.println(compilation.getConsole());
+                }
+            }
+        }
+        if (compilation == null) {
+            compilation = Java2Class.compileInMemory(translation.getClassName(), translation.getJavaCode(), allErrors, path);
+            compiled++;
+            if (cache != null) {
+                cache.put(key, compilation);
+            }
+        }
+        synchronized (this) {
+            if (closed) {
+                release(compilation);
+            } else {
+                release(this.compilation);
+                this.members = members;
+                this.compilation = compilation;
+            }
+        }
+        return new Update(compilation, false, changes);
+    }
+
+    /**
+     * Termine la session, en libérant sa dernière compilation.
+     * <p>Une compilation en cours est libérée dès qu'elle se termine.</p>
+     *
+     * @see Java2Class#release(String)
+     */
+    public synchronized void close() {
+        closed = true;
+        release(compilation);
+        compilation = null;
+        members = Collections.emptyList();
+    }
+
+    /**
+     * Renvoie la dernière compilation de la session, ou null si il n'y en a pas encore ou si la session est terminée.
+     */
+    public synchronized Compilation getCompilation() {
+        return compilation;
+    }
+
+    // Libère une compilation remplacée
+    private void release(Compilation compilation) {
+        if (compilation != null && compilation.isSuccess()) {
+            Java2Class.release(compilation.getClassName());
+        }
+    }
+
+    private String pending = null;
+    private boolean running = false, closed = false;
+    private List<String> members = Collections.emptyList();
+    private Compilation compilation = null;
+    private volatile int compiled = 0, reused = 0;
+
+    /**
+     * Renvoie le nombre de passages par javac dans cette session.
+     */
+    public int getCompiled() {
+        return compiled;
+    }
+
+    /**
+     * Renvoie le nombre de compilations réutilisées sans modification dans cette session.
+     */
+    public int getReused() {
+        return reused;
+    }
+
+    /**
+     * Découpe un code Java en membres de premier niveau, sous forme normalisée.
+     * <p>Les commentaires sont retirés, les espaces sont réduits à un seul et supprimés autour des délimiteurs <tt>(){}[];,</tt>,
+     * les chaînes et caractères littéraux sont conservés tels quels.</p>
+     * <p>L'entête (imports et déclaration de la classe principale) forme le premier membre, puis vient chaque membre de la classe principale.</p>
+     *
+     * @param javaCode Le code Java.
+     * @return La liste des membres normalisés.
+     */
+    static List<String> getMembers(String javaCode) {
+        List<String> members = new ArrayList<String>();
+        StringBuilder member = new StringBuilder();
+        boolean space = false;
+        int depth = 0;
+        for (int i = 0, length = javaCode.length(); i < length; ) {
+            char c = javaCode.charAt(i);
+            if (javaCode.startsWith("//", i)) {
+                int end = javaCode.indexOf('\n', i);
+                i = end == -1 ? length : end;
+                space = true;
+            } else if (javaCode.startsWith("/*", i)) {
+                int end = javaCode.indexOf("*/", i + 2);
+                i = end == -1 ? length : end + 2;
+                space = true;
+            } else if (Character.isWhitespace(c)) {
+                i++;
+                space = true;
+            } else {
+                if (space && member.length() > 0 && !isDelimiter(member.charAt(member.length() - 1)) && !isDelimiter(c)) {
+                    member.append(' ');
+                }
+                space = false;
+                if (c == '"' || c == '\'') {
+                    // Recopie le littéral jusqu'au délimiteur fermant non échappé
+                    int end = i + 1;
+                    while (end < length && javaCode.charAt(end) != c && javaCode.charAt(end) != '\n') {
+                        end += javaCode.charAt(end) == '\\' ? 2 : 1;
+                    }
+                    end = Math.min(end + 1, length);
+                    member.append(javaCode, i, end);
+                    i = end;
+                    continue;
+                }
+                member.append(c);
+                i++;
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    depth--;
+                }
+                if ((c == '{' && depth == 1) || ((c == '}' || c == ';') && depth <= 1)) {
+                    members.add(member.toString());
+                    member.setLength(0);
+                }
+            }
+        }
+        if (member.length() > 0) {
+            members.add(member.toString());
+        }
+        return members;
+    }
+
+    private static boolean isDelimiter(char c) {
+        return "(){}[];,".indexOf(c) != -1;
+    }
+
+    // Renvoie l'entête d'un membre, pour le désigner
+    private static String getHeading(String member) {
+        int end = member.length();
+        for (char c : new char[]{'{', '=', ';'}) {
+            int index = member.indexOf(c);
+            if (index != -1 && index < end) {
+                end = index;
+            }
+        }
+        return member.substring(0, Math.min(end, 80)).replace("\u0000", "").trim();
+    }
+
+    /**
+     * Décrit le résultat de la compilation d'une version du code.
+     */
+    public static class Update {
+        private final Compilation compilation;
+        private final boolean reused;
+        private final List<String> changedMembers;
+
+        private Update(Compilation compilation, boolean reused, List<String> changedMembers) {
+            this.compilation = compilation;
+            this.reused = reused;
+            this.changedMembers = Collections.unmodifiableList(changedMembers);
+        }
+
+        /**
+         * Renvoie la compilation de cette version du code.
+         */
+        public Compilation getCompilation() {
+            return compilation;
+        }
+
+        /**
+         * Renvoie true si la précédente compilation a été réutilisée, aucun membre n'ayant changé.
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Renvoie l'entête des membres ajoutés ou modifiés depuis la précédente compilation.
+         */
+        public List<String> getChangedMembers() {
+            return changedMembers;
+        }
+    }
+}
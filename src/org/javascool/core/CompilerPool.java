@@ -0,0 +1,187 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gère une réserve de contextes de compilation javac réutilisables d'une compilation à l'autre.
+ * <p>Chaque contexte conserve son gestionnaire de fichiers, donc les jarres du classpath déjà ouvertes et indexées,
+ * ce qui évite de relire <tt>jvslib.jar</tt> et la jarre de l'applet à chaque compilation.</p>
+ * <p>La réserve contient au plus autant de contextes que de processeurs : au delà, une compilation attend qu'un contexte se libère.</p>
+ * <p>Note: la table des symboles de javac est propre à chaque tâche de compilation et n'est pas partagée.</p>
+ *
+ * @serial exclude
+ * @see <a href="CompilerPool.java.html">code source</a>
+ */
+public class CompilerPool {
+    // @factory
+    private CompilerPool() {
+    }
+
+    /**
+     * Renvoie le nombre maximal de contextes de compilation, égal au nombre de processeurs.
+     */
+    public static int getSize() {
+        return size;
+    }
+
+    /**
+     * Renvoie le nombre de contextes de compilation actuellement créés.
+     */
+    public static int getCreated() {
+        return created.get();
+    }
+
+    /**
+     * Réserve un contexte de compilation pour un classpath donné.
+     * <p>Le contexte doit être rendu par {@link #release(Context, boolean)} à la fin de la compilation.</p>
+     *
+     * @param path Le classpath de compilation, ou null si non défini.
+     * @return Un contexte de compilation à usage exclusif.
+     */
+    static Context borrow(String[] path) {
+        String classpath = path == null ? "" : Arrays.toString(path);
+        Context context = null;
+        // Recherche en priorité un contexte déjà configuré pour ce classpath
+        for (Context idle : idles) {
+            if (classpath.equals(idle.classpath) && idles.remove(idle)) {
+                context = idle;
+                break;
+            }
+        }
+        while (context == null) {
+            context = idles.poll();
+            if (context == null && created.incrementAndGet() <= size) {
+                context = create();
+            } else if (context == null) {
+                created.decrementAndGet();
+                // L'attente est bornée pour revoir le nombre de contextes, qui diminue si un contexte détruit n'a pu être remplacé
+                try {
+                    context = idles.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException("Compilation interrompue", e);
+                }
+            }
+        }
+        try {
+            context.setClasspath(classpath, path);
+        } catch (RuntimeException e) {
+            idles.offer(context);
+            throw e;
+        }
+        return context;
+    }
+
+    // Crée un contexte déjà compté dans created, et le décompte si la création échoue
+    private static Context create() {
+        try {
+            return new Context(getCompiler());
+        } catch (RuntimeException e) {
+            created.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Rend un contexte de compilation à la réserve.
+     *
+     * @param context Le contexte réservé par {@link #borrow(String[])}.
+     * @param healthy La valeur false si la compilation a échoué de manière inattendue : le contexte est alors détruit.
+     */
+    static void release(Context context, boolean healthy) {
+        if (healthy && ++context.uses < MAX_USES) {
+            try {
+                context.fileManager.flush();
+                idles.offer(context);
+                return;
+            } catch (IOException e) {
+            }
+        }
+        try {
+            context.fileManager.close();
+        } catch (IOException e) {
+        }
+        // Remplace le contexte détruit pour ne pas bloquer les compilations en attente : il reste compté dans created, sauf si il ne peut être créé
+        try {
+            idles.offer(create());
+        } catch (RuntimeException e) {
+        }
+    }
+
+    /**
+     * Renvoie le compilateur javac, recherché une fois pour toutes.
+     *
+     * @throws IllegalStateException Si le compilateur javac n'est pas accessible.
+     */
+    static JavaCompiler getCompiler() {
+        if (compiler == null) {
+            JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+            if (javac == null) {
+                try {
+                    javac = (JavaCompiler) Class.forName("com.sun.tools.javac.api.JavacTool").getMethod("create").invoke(null);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Impossible d'accéder au compilateur javac : " + e);
+                }
+            }
+            compiler = javac;
+        }
+        return compiler;
+    }
+
+    private static volatile JavaCompiler compiler = null;
+
+    // Nombre de compilations après lesquelles un contexte est recyclé, pour borner la mémoire qu'il retient
+    private static final int MAX_USES = 500;
+    private static final int size = Runtime.getRuntime().availableProcessors();
+    private static final AtomicInteger created = new AtomicInteger();
+    private static final BlockingQueue<Context> idles = new LinkedBlockingQueue<Context>();
+
+    /**
+     * Définit un contexte de compilation réutilisable.
+     */
+    static class Context {
+        final JavaCompiler compiler;
+        final StandardJavaFileManager fileManager;
+        private String classpath = null;
+        private int uses = 0;
+
+        private Context(JavaCompiler compiler) {
+            this.compiler = compiler;
+            this.fileManager = compiler.getStandardFileManager(null, null, null);
+        }
+
+        // Configure le classpath, ce qui n'est fait que si il change
+        private void setClasspath(String classpath, String[] path) {
+            if (classpath.equals(this.classpath)) {
+                return;
+            }
+            List<File> files = new ArrayList<File>();
+            if (path != null) {
+                for (String element : path)
+                    if (element != null && element.length() > 0) {
+                        files.add(new File(element));
+                    }
+            }
+            try {
+                fileManager.setLocation(StandardLocation.CLASS_PATH, files.isEmpty() ? null : files);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Classpath de compilation invalide : " + e);
+            }
+            this.classpath = classpath;
+        }
+    }
+}
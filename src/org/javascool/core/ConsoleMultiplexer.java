@@ -0,0 +1,254 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Aiguille la sortie console vers le flux du contexte du thread courant.
+ * <p>Installé comme <tt>System.out</tt> ou <tt>System.err</tt>, il transmet chaque écriture au flux défini par {@link #setContext(PrintStream)} pour le thread courant,
+ * ou à défaut au flux par défaut : des programmes exécutés en même temps n'écrivent pas dans la même console.</p>
+ * <p>Le contexte est hérité par les threads créés par le programme ; les threads partagés par toutes les exécutions, créés à la demande,
+ * doivent l'être par une fabrique {@link #withoutContext(ThreadFactory)} pour ne pas écrire dans la console du programme qui les a créés.
+ * Le multiplexeur ne prend aucun verrou :
+ * seul le flux du contexte est verrouillé, et il n'est partagé qu'entre les threads d'une même exécution.</p>
+ *
+ * @serial exclude
+ * @see <a href="ConsoleMultiplexer.java.html">code source</a>
+ */
+public class ConsoleMultiplexer extends PrintStream {
+    /**
+     * Crée un multiplexeur de console.
+     *
+     * @param fallback Le flux utilisé par les threads qui n'ont pas de contexte.
+     */
+    public ConsoleMultiplexer(final PrintStream fallback) {
+        super(new OutputStream() {
+            @Override
+            public void write(int b) {
+                fallback.write(b);
+            }
+        });
+        this.fallback = fallback;
+    }
+
+    private final PrintStream fallback;
+
+    private static final InheritableThreadLocal<PrintStream> context = new InheritableThreadLocal<PrintStream>();
+
+    /**
+     * Définit le flux de sortie du thread courant et des threads qu'il va créer.
+     *
+     * @param stream Le flux de sortie, ou null pour revenir au flux par défaut.
+     */
+    public static void setContext(PrintStream stream) {
+        if (stream == null) {
+            context.remove();
+        } else {
+            context.set(stream);
+        }
+    }
+
+    /**
+     * Renvoie le flux de sortie du thread courant, ou null si il n'en a pas.
+     */
+    public static PrintStream getContext() {
+        return context.get();
+    }
+
+    /**
+     * Renvoie une fabrique de threads dont les threads n'héritent pas du contexte du thread qui les crée.
+     * <p>Elle est utilisée pour les threads partagés par toutes les exécutions, qui peuvent être créés à la demande depuis le thread d'un programme.</p>
+     *
+     * @param factory La fabrique de threads.
+     * @return La fabrique, qui crée ses threads sans contexte.
+     */
+    public static ThreadFactory withoutContext(final ThreadFactory factory) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                PrintStream stream = context.get();
+                context.remove();
+                try {
+                    return factory.newThread(runnable);
+                } finally {
+                    if (stream != null) {
+                        context.set(stream);
+                    }
+                }
+            }
+        };
+    }
+
+    // Renvoie le flux de destination du thread courant
+    private PrintStream target() {
+        PrintStream stream = context.get();
+        return stream == null ? fallback : stream;
+    }
+
+    @Override
+    public void write(int b) {
+        target().write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        target().write(bytes, offset, length);
+    }
+
+    @Override
+    public void flush() {
+        target().flush();
+    }
+
+    /**
+     * Ne ferme pas les flux aiguillés, qui appartiennent à leur contexte.
+     */
+    @Override
+    public void close() {
+        flush();
+    }
+
+    @Override
+    public boolean checkError() {
+        return target().checkError();
+    }
+
+    @Override
+    public void print(boolean b) {
+        target().print(b);
+    }
+
+    @Override
+    public void print(char c) {
+        target().print(c);
+    }
+
+    @Override
+    public void print(int i) {
+        target().print(i);
+    }
+
+    @Override
+    public void print(long l) {
+        target().print(l);
+    }
+
+    @Override
+    public void print(float f) {
+        target().print(f);
+    }
+
+    @Override
+    public void print(double d) {
+        target().print(d);
+    }
+
+    @Override
+    public void print(char[] s) {
+        target().print(s);
+    }
+
+    @Override
+    public void print(String s) {
+        target().print(s);
+    }
+
+    @Override
+    public void print(Object o) {
+        target().print(o);
+    }
+
+    @Override
+    public void println() {
+        target().println();
+    }
+
+    @Override
+    public void println(boolean b) {
+        target().println(b);
+    }
+
+    @Override
+    public void println(char c) {
+        target().println(c);
+    }
+
+    @Override
+    public void println(int i) {
+        target().println(i);
+    }
+
+    @Override
+    public void println(long l) {
+        target().println(l);
+    }
+
+    @Override
+    public void println(float f) {
+        target().println(f);
+    }
+
+    @Override
+    public void println(double d) {
+        target().println(d);
+    }
+
+    @Override
+    public void println(char[] s) {
+        target().println(s);
+    }
+
+    @Override
+    public void println(String s) {
+        target().println(s);
+    }
+
+    @Override
+    public void println(Object o) {
+        target().println(o);
+    }
+
+    @Override
+    public PrintStream format(String format, Object... args) {
+        target().format(format, args);
+        return this;
+    }
+
+    @Override
+    public PrintStream format(Locale locale, String format, Object... args) {
+        target().format(locale, format, args);
+        return this;
+    }
+
+    @Override
+    public PrintStream printf(String format, Object... args) {
+        return format(format, args);
+    }
+
+    @Override
+    public PrintStream printf(Locale locale, String format, Object... args) {
+        return format(locale, format, args);
+    }
+
+    @Override
+    public PrintStream append(CharSequence s) {
+        target().append(s);
+        return this;
+    }
+
+    @Override
+    public PrintStream append(CharSequence s, int start, int end) {
+        target().append(s, start, end);
+        return this;
+    }
+
+    @Override
+    public PrintStream append(char c) {
+        target().append(c);
+        return this;
+    }
+}
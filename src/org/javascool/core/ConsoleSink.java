@@ -0,0 +1,208 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recueille la sortie console d'une exécution et la transmet par morceaux, à intervalle régulier.
+ * <p>La sortie, encodée en UTF-8, est conservée dans un tampon circulaire de taille fixe : la mémoire utilisée reste constante quel que soit le volume affiché.
+ * Quand le tampon est plein entre deux transmissions, soit les octets les plus anciens sont perdus (politique <tt>dropOldest</tt>),
+ * soit ce sont les nouveaux (politique <tt>truncate</tt>) ; le nombre d'octets perdus est transmis avec le morceau suivant.</p>
+ * <p>La transmission a lieu dans un thread partagé par toutes les consoles, jamais dans le thread qui écrit.</p>
+ * <p>Les consoles par défaut sont configurées par les propriétés système <tt>webjavac.consoleSize</tt> (par défaut 64 ko),
+ * <tt>webjavac.consolePeriod</tt> (par défaut 100 ms) et <tt>webjavac.consolePolicy</tt> (<tt>dropOldest</tt> par défaut, ou <tt>truncate</tt>).</p>
+ *
+ * @serial exclude
+ * @see <a href="ConsoleSink.java.html">code source</a>
+ */
+public class ConsoleSink extends OutputStream {
+    /**
+     * Reçoit les morceaux de sortie console.
+     */
+    public interface Listener {
+        /**
+         * Reçoit un morceau de sortie console.
+         *
+         * @param text    Le texte affiché depuis le morceau précédent.
+         * @param dropped Le nombre d'octets perdus depuis le morceau précédent, faute de place dans le tampon.
+         */
+        void output(String text, long dropped);
+    }
+
+    /**
+     * Crée une console.
+     *
+     * @param capacity   La taille du tampon, en octets.
+     * @param period     L'intervalle entre deux transmissions, en millisecondes.
+     * @param dropOldest Perd les octets les plus anciens si true, les nouveaux si false, quand le tampon est plein.
+     * @param listener   Le destinataire des morceaux de sortie console.
+     */
+    public ConsoleSink(int capacity, long period, boolean dropOldest, Listener listener) {
+        this.ring = new byte[Math.max(4, capacity)];
+        this.dropOldest = dropOldest;
+        this.listener = listener;
+        task = scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Crée une console configurée par les propriétés système.
+     *
+     * @param listener Le destinataire des morceaux de sortie console.
+     */
+    public static ConsoleSink create(Listener listener) {
+        return new ConsoleSink(Integer.getInteger("webjavac.consoleSize", 64 * 1024), Long.getLong("webjavac.consolePeriod", 100),
+                !"truncate".equals(System.getProperty("webjavac.consolePolicy")), listener);
+    }
+
+    private final byte[] ring;
+    private final boolean dropOldest;
+    private final Listener listener;
+    private final ScheduledFuture<?> task;
+    // Le tampon contient size octets à partir de l'index head
+    private int head = 0, size = 0;
+    private long dropped = 0, total = 0;
+    // Après une perte des plus anciens octets, le début du tampon peut être au milieu d'un caractère
+    private boolean resync = false;
+    private final Object drainLock = new Object();
+
+    @Override
+    public synchronized void write(int b) {
+        total++;
+        if (size == ring.length) {
+            if (!dropOldest) {
+                dropped++;
+                return;
+            }
+            head = (head + 1) % ring.length;
+            size--;
+            dropped++;
+            resync = true;
+        }
+        ring[(head + size) % ring.length] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        total += length;
+        if (length >= ring.length && dropOldest) {
+            // Seule la fin du bloc tient dans le tampon
+            dropped += size + length - ring.length;
+            System.arraycopy(bytes, offset + length - ring.length, ring, 0, ring.length);
+            head = 0;
+            size = ring.length;
+            resync = true;
+            return;
+        }
+        int free = ring.length - size;
+        if (length > free) {
+            if (dropOldest) {
+                int lost = length - free;
+                head = (head + lost) % ring.length;
+                size -= lost;
+                dropped += lost;
+                resync = true;
+            } else {
+                dropped += length - free;
+                length = free;
+            }
+        }
+        int tail = (head + size) % ring.length, first = Math.min(length, ring.length - tail);
+        System.arraycopy(bytes, offset, ring, tail, first);
+        System.arraycopy(bytes, offset + first, ring, 0, length - first);
+        size += length;
+    }
+
+    /**
+     * Ne fait rien : le texte est transmis à intervalle régulier, ou par {@link #drain()}.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Transmet immédiatement le texte en attente.
+     */
+    public void drain() {
+        synchronized (drainLock) {
+            byte[] bytes;
+            long lost;
+            synchronized (this) {
+                int start = 0;
+                if (resync) {
+                    // Saute les octets de continuation d'un caractère tronqué
+                    while (start < size && (ring[(head + start) % ring.length] & 0xC0) == 0x80) {
+                        start++;
+                    }
+                }
+                // Garde pour la prochaine fois un caractère dont tous les octets ne sont pas encore écrits
+                int end = size;
+                for (int i = size - 1; i >= Math.max(start, size - 4); i--) {
+                    int b = ring[(head + i) % ring.length] & 0xFF;
+                    if (b >= 0xC0) {
+                        int length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : 2;
+                        if (i + length > size) {
+                            end = i;
+                        }
+                        break;
+                    } else if (b < 0x80) {
+                        break;
+                    }
+                }
+                if (end <= start && dropped == 0) {
+                    return;
+                }
+                bytes = new byte[Math.max(0, end - start)];
+                for (int i = 0; i < bytes.length; i++)
+                    bytes[i] = ring[(head + start + i) % ring.length];
+                head = (head + Math.max(end, start)) % ring.length;
+                size -= Math.max(end, start);
+                lost = dropped + (resync ? start : 0);
+                dropped = 0;
+                resync = false;
+            }
+            try {
+                listener.output(new String(bytes, "UTF-8"), lost);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Transmet le texte en attente et arrête les transmissions régulières.
+     */
+    @Override
+    public void close() {
+        task.cancel(false);
+        drain();
+    }
+
+    /**
+     * Renvoie le nombre total d'octets écrits, y compris ceux qui ont été perdus.
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    // Thread partagé des transmissions
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(ConsoleMultiplexer.withoutContext(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "JVSConsole");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }));
+}
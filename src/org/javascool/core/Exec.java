@@ -8,6 +8,12 @@ import org.javascool.tools.FileManager;
 
 import java.io.*;
 import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Exécute une commande du système d'exploitation.
@@ -22,6 +28,7 @@ public class Exec {
 
     /**
      * Execute la commande et renvoie le résultat.
+     * <p>La commande est lancée par {@link #runAsync(String, int)}, sa sortie est limitée aux <tt>webjavac.execOutputSize</tt> (par défaut 1048576) premiers caractères.</p>
      *
      * @param command La commande avec ses arguments séparés par des tabulations (caractère "\t") ou, sans cela, des espaces (caractère " ").
      * @param timeout Temporisation maximale avant la fin de la commande.  Valeur par défaut 10.
@@ -29,59 +36,183 @@ public class Exec {
      *                <p>Si -1, la commande est lancée en arrière plan et la fonction revient tout de suite, sans résultat.</p>
      * @return Le résultat: ce que la commande écrit en sortie.
      * @throws RuntimeException      Si une erreur d'entrée-sortie s'est produite lors de l'exécution.
-     * @throws IllegalStateException Si le statut de retour de la commande n'est pas 0 (donc a un numéro d'erreur) ou si la temporisation est dépassée.
+     * @throws IllegalStateException Si le statut de retour de la commande n'est pas 0 (donc a un numéro d'erreur) ou si la temporisation est dépassée, la commande est alors détruite.
      */
     public static String run(String command, int timeout) {
-        try {
-            Process process = exec(command);
-            if (timeout == -1) {
+        if (timeout == -1) {
+            try {
+                exec(command);
                 return "";
+            } catch (IOException e) {
+                throw new RuntimeException(e + " when executing: " + command);
             }
-            StringBuffer output = new StringBuffer();
-            long time = timeout > 0 ? System.currentTimeMillis() + 1000 * timeout : 0;
-            InputStreamReader stdout = new InputStreamReader(process.getInputStream());
-            InputStreamReader stderr = new InputStreamReader(process.getErrorStream());
-            for (boolean waitfor = true; waitfor; ) {
-                waitfor = false;
-                Thread.yield();
-                while (stdout.ready()) {
-                    waitfor = true;
-                    output.append((char) stdout.read());
-                }
-                while (stderr.ready()) {
-                    waitfor = true;
-                    output.append((char) stderr.read());
+        }
+        Command task = launch(command, Integer.getInteger("webjavac.execOutputSize", 1024 * 1024));
+        Result result;
+        try {
+            result = timeout > 0 ? task.get(timeout, TimeUnit.SECONDS) : task.get();
+        } catch (TimeoutException e) {
+            task.cancel(true);
+            throw new IllegalStateException("Command {" + command + "} timeout (>" + timeout + "s) output=[" + task.output + "]\n");
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Command {" + command + "} interrupted output=[" + task.output + "]\n");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause() + " when executing: " + command);
+        }
+        String output = result.getDropped() > 0 ? result.getOutput() + "\n[... " + result.getDropped() + " caractères perdus ...]\n" : result.getOutput();
+        if (result.getExitValue() != 0) {
+            throw new IllegalStateException("Command {" + command + "} error #" + result.getExitValue() + " output=[\n" + output + "\n]\n");
+        }
+        return output;
+    }
+
+    /**
+     * Lance la commande et revient tout de suite.
+     * <p>Les sorties standard et d'erreur sont lues par blocs, chacune par son propre thread, et le résultat est disponible dès la fin du processus :
+     * il n'y a ni scrutation ni attente arbitraire. Annuler le résultat détruit le processus.</p>
+     *
+     * @param command   La commande avec ses arguments séparés par des tabulations (caractère "\t") ou, sans cela, des espaces (caractère " ").
+     * @param maxOutput Le nombre maximal de caractères de sortie conservés, les suivants sont perdus et comptés.
+     * @return Le résultat à venir de la commande.
+     * @throws RuntimeException Si la commande ne peut être lancée.
+     */
+    public static Future<Result> runAsync(String command, int maxOutput) {
+        return launch(command, maxOutput);
+    }
+
+    /**
+     * Décrit le résultat d'une commande terminée.
+     */
+    public static class Result {
+        private final int exitValue;
+        private final String output;
+        private final long dropped;
+
+        private Result(int exitValue, String output, long dropped) {
+            this.exitValue = exitValue;
+            this.output = output;
+            this.dropped = dropped;
+        }
+
+        /**
+         * Renvoie le statut de retour de la commande, 0 en cas de succès.
+         */
+        public int getExitValue() {
+            return exitValue;
+        }
+
+        /**
+         * Renvoie ce que la commande a écrit en sortie standard et d'erreur, dans la limite demandée.
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * Renvoie le nombre de caractères de sortie perdus au delà de la limite.
+         */
+        public long getDropped() {
+            return dropped;
+        }
+    }
+
+    // Lance une commande et le thread qui attend sa fin
+    private static Command launch(String command, int maxOutput) {
+        try {
+            Command task = new Command(exec(command), new Output(maxOutput));
+            Thread waiter = new Thread(task, "JVSExecWaiter");
+            waiter.setDaemon(true);
+            waiter.start();
+            return task;
+        } catch (IOException e) {
+            throw new RuntimeException(e + " when executing: " + command);
+        }
+    }
+
+    // Attend la fin d'une commande en vidant ses sorties, et détruit le processus si l'attente est annulée
+    private static class Command extends FutureTask<Result> {
+        private final Process process;
+        private final Output output;
+
+        private Command(final Process process, final Output output) {
+            super(new Callable<Result>() {
+                public Result call() throws InterruptedException {
+                    Thread stdout = output.drain(process.getInputStream()), stderr = output.drain(process.getErrorStream());
+                    int exitValue = process.waitFor();
+                    // Un processus lancé par la commande peut garder ses sorties ouvertes : on ne les attend qu'un temps borné
+                    stdout.join(READ_GRACE);
+                    stderr.join(READ_GRACE);
+                    close(process.getInputStream());
+                    close(process.getErrorStream());
+                    return output.getResult(exitValue);
                 }
-                if (!waitfor) {
+            });
+            this.process = process;
+            this.output = output;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                process.destroy();
+            }
+        }
+    }
+
+    // Temps d'attente maximal de la fin des sorties, une fois le processus terminé, en millisecondes
+    private static final long READ_GRACE = 1000;
+
+    // Tampon borné où sont lues, par blocs, les sorties d'une commande
+    private static class Output {
+        private final StringBuilder text = new StringBuilder();
+        private final int max;
+        private long dropped = 0;
+
+        private Output(int max) {
+            this.max = max;
+        }
+
+        private synchronized void append(char[] chars, int length) {
+            int kept = Math.max(0, Math.min(length, max - text.length()));
+            text.append(chars, 0, kept);
+            dropped += length - kept;
+        }
+
+        private synchronized Result getResult(int exitValue) {
+            return new Result(exitValue, text.toString(), dropped);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return text.toString();
+        }
+
+        // Lance le thread qui lit un flux jusqu'à sa fin
+        private Thread drain(final InputStream in) {
+            Thread reader = new Thread("JVSExecReader") {
+                @Override
+                public void run() {
+                    Reader reader = new InputStreamReader(in);
+                    char[] buffer = new char[8192];
                     try {
-                        process.exitValue();
-                    } catch (IllegalThreadStateException e1) {
-                        try {
-                            Thread.sleep(100);
-                        } catch (Exception e2) {
-                        }
-                        waitfor = true;
+                        for (int n; (n = reader.read(buffer)) != -1; )
+                            append(buffer, n);
+                    } catch (IOException e) {
                     }
                 }
-                if ((time > 0) && (System.currentTimeMillis() > time)) {
-                    throw new IllegalStateException("Command {" + command + "} timeout (>" + timeout + "s) output=[" + output + "]\n");
-                }
-            }
-            stdout.close();
-            stderr.close();
-            // Terminates the process
-            process.destroy();
-            try {
-                process.waitFor();
-            } catch (Exception e) {
-            }
-            Thread.yield();
-            if (process.exitValue() != 0) {
-                throw new IllegalStateException("Command {" + command + "} error #" + process.exitValue() + " output=[\n" + output + "\n]\n");
-            }
-            return output.toString();
+            };
+            reader.setDaemon(true);
+            reader.start();
+            return reader;
+        }
+    }
+
+    private static void close(InputStream in) {
+        try {
+            in.close();
         } catch (IOException e) {
-            throw new RuntimeException(e + " when executing: " + command);
         }
     }
 
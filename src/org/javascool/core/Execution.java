@@ -0,0 +1,76 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Décrit l'exécution d'un programme confiée à un {@link ExecutionEngine}.
+ * <p>Le temps d'attente dans la file et le temps d'exécution sont mesurés.</p>
+ *
+ * @serial exclude
+ * @see <a href="Execution.java.html">code source</a>
+ */
+public class Execution extends FutureTask<Object> {
+    /**
+     * Définit l'exécution d'un programme.
+     * <p>La méthode <tt>done()</tt> peut être redéfinie pour être notifié de la fin de l'exécution.</p>
+     *
+     * @param name    Le nom de l'exécution.
+     * @param program Le programme à exécuter.
+     */
+    public Execution(String name, final Runnable program) {
+        super(new Callable<Object>() {
+            public Object call() {
+                program.run();
+                return null;
+            }
+        });
+        this.name = name;
+        submitted = System.nanoTime();
+    }
+
+    private final String name;
+    private final long submitted;
+    private volatile long started = 0, finished = 0;
+
+    @Override
+    public void run() {
+        started = System.nanoTime();
+        try {
+            super.run();
+        } finally {
+            finished = System.nanoTime();
+        }
+    }
+
+    /**
+     * Renvoie le nom de l'exécution.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Renvoie le temps passé dans la file d'attente, en millisecondes, jusqu'au début de l'exécution ou jusqu'à maintenant.
+     */
+    public long getQueueWait() {
+        return ((started == 0 ? System.nanoTime() : started) - submitted) / 1000000;
+    }
+
+    /**
+     * Renvoie le temps d'exécution, en millisecondes, jusqu'à la fin de l'exécution ou jusqu'à maintenant, ou 0 si elle n'a pas commencé.
+     */
+    public long getRunTime() {
+        return started == 0 ? 0 : ((finished == 0 ? System.nanoTime() : finished) - started) / 1000000;
+    }
+
+    /**
+     * Renvoie true si l'exécution a commencé.
+     */
+    public boolean isStarted() {
+        return started != 0;
+    }
+}
@@ -0,0 +1,176 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exécute les programmes sur une réserve bornée de threads.
+ * <p>Au plus <tt>threads</tt> programmes s'exécutent en même temps, et au plus <tt>queueSize</tt> attendent leur tour :
+ * au delà, une nouvelle exécution est refusée plutôt que de créer un thread de plus.</p>
+ * <p>Sur une JDK qui les propose (Java 21 et plus), les programmes peuvent être exécutés par des threads virtuels, avec les mêmes bornes.
+ * Les threads inactifs sont arrêtés au bout d'une minute.</p>
+ * <p>Le moteur par défaut est configuré par les propriétés système <tt>webjavac.execThreads</tt> (par défaut le nombre de processeurs),
+ * <tt>webjavac.execQueue</tt> (par défaut 16) et <tt>webjavac.virtualThreads</tt> (par défaut false).</p>
+ *
+ * @serial exclude
+ * @see <a href="ExecutionEngine.java.html">code source</a>
+ */
+public class ExecutionEngine {
+    /**
+     * Crée un moteur d'exécution.
+     *
+     * @param threads        Le nombre maximal d'exécutions simultanées.
+     * @param queueSize      Le nombre maximal d'exécutions en attente.
+     * @param virtualThreads Exécute les programmes par des threads virtuels si true et si la JDK le permet.
+     */
+    public ExecutionEngine(int threads, int queueSize, boolean virtualThreads) {
+        ThreadFactory virtualFactory = virtualThreads ? getVirtualThreadFactory() : null;
+        this.virtual = virtualFactory != null;
+        final ThreadFactory factory = virtualFactory;
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                ConsoleMultiplexer.withoutContext(new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = factory == null ? new Thread(runnable) : factory.newThread(runnable);
+                        thread.setName("JVSExecThread-" + threadCount.incrementAndGet());
+                        return thread;
+                    }
+                })) {
+            @Override
+            protected void afterExecute(Runnable runnable, Throwable error) {
+                if (runnable instanceof Execution) {
+                    queueWait.addAndGet(((Execution) runnable).getQueueWait());
+                    runTime.addAndGet(((Execution) runnable).getRunTime());
+                }
+            }
+        };
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final boolean virtual;
+    private final AtomicLong threadCount = new AtomicLong(), rejected = new AtomicLong(), queueWait = new AtomicLong(), runTime = new AtomicLong();
+
+    /**
+     * Renvoie le moteur d'exécution par défaut, configuré par les propriétés système.
+     */
+    public static ExecutionEngine getDefault() {
+        synchronized (ExecutionEngine.class) {
+            if (defaultEngine == null) {
+                defaultEngine = new ExecutionEngine(Integer.getInteger("webjavac.execThreads", Runtime.getRuntime().availableProcessors()),
+                        Integer.getInteger("webjavac.execQueue", 16), Boolean.getBoolean("webjavac.virtualThreads"));
+            }
+            return defaultEngine;
+        }
+    }
+
+    private static ExecutionEngine defaultEngine = null;
+
+    /**
+     * Confie l'exécution d'un programme au moteur.
+     *
+     * @param name    Le nom de l'exécution.
+     * @param program Le programme à exécuter.
+     * @return L'exécution, qui permet d'attendre sa fin et d'en connaître les temps d'attente et d'exécution.
+     * @throws RejectedExecutionException Si la file d'attente est pleine.
+     */
+    public Execution submit(String name, Runnable program) {
+        return submit(new Execution(name, program));
+    }
+
+    /**
+     * Confie une exécution au moteur.
+     *
+     * @param execution L'exécution du programme.
+     * @return L'exécution.
+     * @throws RejectedExecutionException Si la file d'attente est pleine.
+     */
+    public Execution submit(Execution execution) {
+        try {
+            executor.execute(execution);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Trop de programmes en cours d'exécution (" + executor.getActiveCount() + " en cours, " + executor.getQueue().size() + " en attente)");
+        }
+        return execution;
+    }
+
+    /**
+     * Arrête le moteur : les exécutions en attente sont abandonnées et celles en cours sont interrompues.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Renvoie true si les programmes sont exécutés par des threads virtuels.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Renvoie le nombre maximal d'exécutions simultanées.
+     */
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Renvoie le nombre d'exécutions en cours.
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Renvoie le nombre d'exécutions en attente.
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Renvoie le nombre d'exécutions terminées.
+     */
+    public long getCompleted() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Renvoie le nombre d'exécutions refusées, la file d'attente étant pleine.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Renvoie le temps total passé en file d'attente par les exécutions terminées, en millisecondes.
+     */
+    public long getTotalQueueWait() {
+        return queueWait.get();
+    }
+
+    /**
+     * Renvoie le temps total d'exécution des exécutions terminées, en millisecondes.
+     */
+    public long getTotalRunTime() {
+        return runTime.get();
+    }
+
+    // Renvoie la fabrique de threads virtuels de la JDK, ou null si elle n'en propose pas
+    private static ThreadFactory getVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
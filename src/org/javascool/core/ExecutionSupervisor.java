@@ -0,0 +1,307 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Surveille l'exécution des programmes et arrête ceux qui dépassent leur budget.
+ * <p>Pour chaque exécution sont mesurés le temps de calcul du thread, le temps écoulé et la mémoire allouée, à l'aide du <tt>ThreadMXBean</tt> de la machine virtuelle.
+ * La mémoire allouée n'est mesurée que si la machine virtuelle le permet (<tt>com.sun.management.ThreadMXBean</tt>).</p>
+ * <p>Un programme qui dépasse son budget est interrompu : il s'arrête à son prochain tour de boucle ou appel à <tt>sleep</tt>.
+ * Si il ne s'est pas arrêté au bout d'une seconde, son thread est arrêté de force par <tt>Thread.stop()</tt>, quand la machine virtuelle le permet encore.</p>
+ * <p>Les superviseurs par défaut sont configurés par les propriétés système <tt>webjavac.maxCpuTime</tt>, <tt>webjavac.maxWallTime</tt> et <tt>webjavac.maxAllocatedBytes</tt>,
+ * la valeur 0 signifiant sans limite. Sans ces propriétés, le superviseur par défaut, utilisé par l'applet, ne limite rien : un programme interactif peut attendre son utilisateur ;
+ * le superviseur des exécutions sans interface, utilisé par le serveur et les processus d'exécution, limite chaque exécution à 10000 ms de calcul, 60000 ms et 1 Go alloué.</p>
+ *
+ * @serial exclude
+ * @see <a href="ExecutionSupervisor.java.html">code source</a>
+ */
+public class ExecutionSupervisor {
+    /**
+     * Crée un superviseur d'exécution.
+     *
+     * @param maxCpuTime        Le temps de calcul maximal d'une exécution, en millisecondes, ou 0 si il n'y a pas de limite.
+     * @param maxWallTime       Le temps maximal d'une exécution, en millisecondes, ou 0 si il n'y a pas de limite.
+     * @param maxAllocatedBytes La mémoire maximale allouée par une exécution, en octets, ou 0 si il n'y a pas de limite.
+     */
+    public ExecutionSupervisor(long maxCpuTime, long maxWallTime, long maxAllocatedBytes) {
+        this.maxCpuTime = maxCpuTime;
+        this.maxWallTime = maxWallTime;
+        this.maxAllocatedBytes = maxAllocatedBytes;
+    }
+
+    private final long maxCpuTime, maxWallTime, maxAllocatedBytes;
+
+    /**
+     * Renvoie le superviseur par défaut, configuré par les propriétés système, sans limite si elles ne sont pas définies.
+     */
+    public static ExecutionSupervisor getDefault() {
+        synchronized (ExecutionSupervisor.class) {
+            if (defaultSupervisor == null) {
+                defaultSupervisor = new ExecutionSupervisor(Long.getLong("webjavac.maxCpuTime", 0), Long.getLong("webjavac.maxWallTime", 0),
+                        Long.getLong("webjavac.maxAllocatedBytes", 0));
+            }
+            return defaultSupervisor;
+        }
+    }
+
+    /**
+     * Renvoie le superviseur des exécutions sans interface, configuré par les propriétés système,
+     * par défaut limité à 10000 ms de calcul, 60000 ms d'exécution et 1 Go alloué.
+     */
+    public static ExecutionSupervisor getHeadless() {
+        synchronized (ExecutionSupervisor.class) {
+            if (headlessSupervisor == null) {
+                headlessSupervisor = new ExecutionSupervisor(Long.getLong("webjavac.maxCpuTime", 10000), Long.getLong("webjavac.maxWallTime", 60000),
+                        Long.getLong("webjavac.maxAllocatedBytes", 1024L * 1024 * 1024));
+            }
+            return headlessSupervisor;
+        }
+    }
+
+    private static ExecutionSupervisor defaultSupervisor = null, headlessSupervisor = null;
+
+    /**
+     * Renvoie le temps maximal d'une exécution, en millisecondes, ou 0 si il n'y a pas de limite.
+     */
+    public long getMaxWallTime() {
+        return maxWallTime;
+    }
+
+    /**
+     * Exécute un programme dans le thread courant, sous surveillance.
+     * <p>Le thread courant peut être interrompu ou arrêté de force : il doit appartenir à l'appelant, par exemple un thread d'un {@link ExecutionEngine}
+     * ou d'un {@link ExecutionWorker}, et jamais un thread partagé avec d'autres traitements.</p>
+     *
+     * @param program Le programme à exécuter.
+     * @return Les ressources utilisées par l'exécution, et l'erreur qui l'a éventuellement terminée.
+     */
+    public Usage run(Runnable program) {
+        Run run = new Run(Thread.currentThread());
+        runs.put(run.thread, run);
+        startWatching();
+        try {
+            program.run();
+        } catch (Throwable e) {
+            run.error = e;
+        } finally {
+            // Un arrêt de force demandé juste avant la fin peut arriver ici : la fin de l'exécution est alors recommencée
+            while (true) {
+                try {
+                    end(run);
+                    break;
+                } catch (ThreadDeath e) {
+                    if (run.error == null) {
+                        run.error = e;
+                    }
+                }
+            }
+            run.measure();
+            // Efface l'interruption due au dépassement, pour ne pas perturber la suite du thread
+            if (run.exceeded != null) {
+                Thread.interrupted();
+            }
+        }
+        return new Usage(run);
+    }
+
+    /**
+     * Décrit les ressources utilisées par une exécution.
+     */
+    public static class Usage {
+        private final long cpuTime, wallTime, allocatedBytes;
+        private final String exceeded;
+        private final Throwable error;
+
+        private Usage(Run run) {
+            cpuTime = run.cpuTime;
+            wallTime = run.wallTime;
+            allocatedBytes = run.allocatedBytes;
+            exceeded = run.exceeded;
+            error = run.error;
+        }
+
+        /**
+         * Renvoie le temps de calcul du thread, en millisecondes, ou -1 si il n'est pas mesuré.
+         */
+        public long getCpuTime() {
+            return cpuTime;
+        }
+
+        /**
+         * Renvoie le temps écoulé, en millisecondes.
+         */
+        public long getWallTime() {
+            return wallTime;
+        }
+
+        /**
+         * Renvoie la mémoire allouée, en octets, ou -1 si elle n'est pas mesurée.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * Renvoie le budget dépassé : <tt>"cpuTime"</tt>, <tt>"wallTime"</tt> ou <tt>"allocatedBytes"</tt>, ou null si le budget a été respecté.
+         */
+        public String getExceeded() {
+            return exceeded;
+        }
+
+        /**
+         * Renvoie l'erreur qui a terminé l'exécution, ou null si elle s'est terminée normalement.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Renvoie le message d'erreur de l'exécution, ou la chaîne vide si elle s'est terminée normalement.
+         */
+        public String getMessage() {
+            if (exceeded != null) {
+                return "Programme arrêté : " + ("cpuTime".equals(exceeded) ? "temps de calcul" : "wallTime".equals(exceeded) ? "temps d'exécution" : "mémoire allouée") + " dépassé";
+            }
+            return error == null ? "" : error.toString();
+        }
+    }
+
+    // Exécution en cours, mesurée par rapport aux compteurs du thread à son début
+    private class Run {
+        private final Thread thread;
+        private final long startWall, startCpu, startAllocated;
+        private volatile long cpuTime = -1, wallTime = 0, allocatedBytes = -1, exceededAt = 0;
+        private volatile String exceeded = null;
+        private Throwable error = null;
+        private boolean done = false;
+
+        private Run(Thread thread) {
+            this.thread = thread;
+            startWall = System.nanoTime();
+            startCpu = getCpuTime(thread);
+            startAllocated = getAllocatedBytes(thread);
+        }
+
+        // Met à jour les mesures
+        private void measure() {
+            wallTime = (System.nanoTime() - startWall) / 1000000;
+            long cpu = getCpuTime(thread), allocated = getAllocatedBytes(thread);
+            cpuTime = cpu < 0 || startCpu < 0 ? -1 : (cpu - startCpu) / 1000000;
+            allocatedBytes = allocated < 0 || startAllocated < 0 ? -1 : allocated - startAllocated;
+        }
+
+        // Vérifie le budget, et arrête l'exécution si il est dépassé
+        @SuppressWarnings("deprecation")
+        private void check() {
+            measure();
+            // Le thread n'est interrompu ou arrêté que si il exécute encore le programme
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                if (exceeded == null) {
+                    exceeded = maxCpuTime > 0 && cpuTime > maxCpuTime ? "cpuTime" : maxWallTime > 0 && wallTime > maxWallTime ? "wallTime" :
+                            maxAllocatedBytes > 0 && allocatedBytes > maxAllocatedBytes ? "allocatedBytes" : null;
+                    if (exceeded != null) {
+                        exceededAt = System.nanoTime();
+                        thread.interrupt();
+                    }
+                } else if (System.nanoTime() - exceededAt > STOP_DELAY) {
+                    exceededAt = System.nanoTime();
+                    try {
+                        thread.stop();
+                    } catch (Throwable e) {
+                        thread.interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+    // Termine une exécution, qui ne sera plus interrompue ni arrêtée : peut être appelé plusieurs fois
+    private void end(Run run) {
+        synchronized (run) {
+            run.done = true;
+        }
+        runs.remove(run.thread, run);
+    }
+
+    private final Map<Thread, Run> runs = new ConcurrentHashMap<Thread, Run>();
+    private ScheduledExecutorService watcher = null;
+
+    // Démarre la vérification périodique des exécutions en cours
+    private synchronized void startWatching() {
+        if (watcher == null) {
+            watcher = Executors.newSingleThreadScheduledExecutor(ConsoleMultiplexer.withoutContext(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "JVSSupervisor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+            watcher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    for (Run run : runs.values())
+                        if (run.thread.isAlive()) {
+                            run.check();
+                        } else {
+                            // Thread terminé sans avoir pu retirer son exécution
+                            runs.remove(run.thread, run);
+                        }
+                }
+            }, PERIOD, PERIOD, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Période de vérification des budgets, en millisecondes
+    private static final long PERIOD = 20;
+    // Délai après l'interruption au delà duquel le thread est arrêté de force, en nanosecondes
+    private static final long STOP_DELAY = 1000000000L;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final Method allocatedBytesMethod;
+
+    static {
+        Method method = null;
+        try {
+            if (threads.isThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()) {
+                threads.setThreadCpuTimeEnabled(true);
+            }
+            Class<?> sunThreads = Class.forName("com.sun.management.ThreadMXBean");
+            if (sunThreads.isInstance(threads)) {
+                method = sunThreads.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (Throwable e) {
+        }
+        allocatedBytesMethod = method;
+    }
+
+    // Renvoie le temps de calcul cumulé d'un thread, en nanosecondes, ou -1 si il n'est pas mesuré
+    private static long getCpuTime(Thread thread) {
+        try {
+            return threads.isThreadCpuTimeSupported() ? threads.getThreadCpuTime(thread.getId()) : -1;
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+    // Renvoie la mémoire allouée cumulée par un thread, en octets, ou -1 si elle n'est pas mesurée
+    private static long getAllocatedBytes(Thread thread) {
+        try {
+            return allocatedBytesMethod == null ? -1 : (Long) allocatedBytesMethod.invoke(threads, thread.getId());
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Processus d'exécution de programmes, lancé et piloté par un {@link WorkerPool}.
+ * <p>Le processus lit sur son entrée standard le bytecode des programmes à exécuter, les exécute l'un après l'autre sous la surveillance du
+ * {@link ExecutionSupervisor#getHeadless() superviseur des exécutions sans interface}, et écrit sur sa sortie standard la sortie de chaque programme et les ressources qu'il a utilisées.
+ * Les entrée et sortie standard sont lues et écrites par des flux privés : les programmes voient une entrée standard vide, et écrivent dans un tampon.
+ * La sortie d'un programme est limitée aux <tt>webjavac.consoleSize</tt> (par défaut 65536) premiers octets.</p>
+ * <p>Les threads du groupe des programmes vivants après le démarrage sont relevés : si un programme laisse derrière lui d'autres threads de ce groupe,
+ * le processus le signale dans sa réponse, et la réserve ne lui confie plus d'autre programme.</p>
+ * <p>Le processus s'arrête à la fin de son entrée standard.</p>
+ *
+ * @serial exclude
+ * @see <a href="ExecutionWorker.java.html">code source</a>
+ */
+public class ExecutionWorker {
+    // @factory
+    private ExecutionWorker() {
+    }
+
+    /**
+     * Lanceur du processus d'exécution.
+     *
+     * @param usage <tt>java org.javascool.core.ExecutionWorker</tt>
+     */
+    public static void main(String[] usage) throws IOException {
+        // @main
+        System.setProperty("java.awt.headless", "true");
+        // L'entrée standard est réservée aux demandes : les programmes lisent une entrée vide
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+        System.setIn(new ByteArrayInputStream(new byte[0]));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        // La sortie standard est réservée aux réponses : les programmes écrivent dans le tampon
+        Capture capture = new Capture(Integer.getInteger("webjavac.consoleSize", 64 * 1024));
+        PrintStream console = new PrintStream(capture, true, "UTF-8");
+        System.setOut(console);
+        System.setErr(console);
+        warmUp();
+        Set<Thread> baseline = getThreads();
+        out.writeInt(WorkerPool.READY);
+        out.flush();
+        for (; ; ) {
+            String className;
+            try {
+                className = in.readUTF();
+            } catch (EOFException e) {
+                return;
+            }
+            Map<String, byte[]> classes = new HashMap<String, byte[]>();
+            for (int count = in.readInt(); count > 0; count--) {
+                String name = in.readUTF();
+                byte[] bytecode = new byte[in.readInt()];
+                in.readFully(bytecode);
+                classes.put(name, bytecode);
+            }
+            capture.reset();
+            ExecutionSupervisor.Usage run = null;
+            String error;
+            try {
+                run = ExecutionSupervisor.getHeadless().run(Java2Class.load(new Compilation(className, classes, new ArrayList<CompileDiagnostic>(), "")));
+                error = run.getMessage();
+            } catch (Exception e) {
+                error = e.toString();
+            }
+            console.flush();
+            synchronized (capture) {
+                out.writeInt(capture.length);
+                out.write(capture.data, 0, capture.length);
+                out.writeLong(capture.dropped);
+            }
+            out.writeUTF(error.length() > 4096 ? error.substring(0, 4096) : error);
+            out.writeUTF(run == null || run.getExceeded() == null ? "" : run.getExceeded());
+            out.writeLong(run == null ? -1 : run.getCpuTime());
+            out.writeLong(run == null ? 0 : run.getWallTime());
+            out.writeLong(run == null ? -1 : run.getAllocatedBytes());
+            out.writeBoolean(hasLeftovers(baseline));
+            out.flush();
+        }
+    }
+
+    // Renvoie true si des threads créés par les programmes sont encore vivants
+    private static boolean hasLeftovers(Set<Thread> baseline) {
+        for (Thread thread : getThreads())
+            if (!baseline.contains(thread)) {
+                return true;
+            }
+        return false;
+    }
+
+    // Renvoie les threads vivants du groupe des programmes, qui exclut les threads internes de la machine virtuelle démarrés à la demande
+    private static Set<Thread> getThreads() {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        Thread[] threads = new Thread[group.activeCount() + 16];
+        int count;
+        while ((count = group.enumerate(threads, true)) == threads.length) {
+            threads = new Thread[2 * threads.length];
+        }
+        Set<Thread> alive = new HashSet<Thread>();
+        for (int i = 0; i < count; i++)
+            if (threads[i].isAlive()) {
+                alive.add(threads[i]);
+            }
+        return alive;
+    }
+
+    // Charge les classes utilisées par toutes les exécutions, et démarre la surveillance, avant le premier programme
+    private static void warmUp() {
+        for (String name : new String[]{"org.javascool.macros.Macros", "org.javascool.macros.Stdout", "org.javascool.macros.Stdin"})
+            try {
+                Class.forName(name);
+            } catch (Throwable e) {
+            }
+        ExecutionSupervisor.getHeadless().run(new Runnable() {
+            public void run() {
+            }
+        });
+    }
+
+    // Tampon borné de la sortie d'un programme, les octets au delà de la limite sont comptés et perdus
+    private static class Capture extends OutputStream {
+        private final byte[] data;
+        private int length = 0;
+        private long dropped = 0;
+
+        private Capture(int size) {
+            data = new byte[size];
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (length < data.length) {
+                data[length++] = (byte) b;
+            } else {
+                dropped++;
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int count) {
+            int kept = Math.min(count, data.length - length);
+            System.arraycopy(bytes, offset, data, length, kept);
+            length += kept;
+            dropped += count - kept;
+        }
+
+        private synchronized void reset() {
+            length = 0;
+            dropped = 0;
+        }
+    }
+}
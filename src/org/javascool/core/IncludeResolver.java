@@ -0,0 +1,109 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import org.javascool.tools.FileManager;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Résout les directives <tt>include nom;</tt> d'un code Jvs.
+ * <p>Chaque fichier <tt>nom.jvs</tt> inclus n'est lu et découpé qu'une fois : il est mémorisé avec sa date de modification et relu uniquement si il a changé.
+ * La date est vérifiée une seule fois par traduction ; un fichier dont la date n'est pas connue n'est pas mémorisé, il est relu à chaque traduction.</p>
+ * <p>Les inclusions imbriquées sont résolues, et un fichier inclus plusieurs fois dans une même traduction n'est recopié qu'une fois.</p>
+ * <p>Le contenu inclus fait partie du code traduit : le cache de compilation et les sessions, qui comparent ce code, voient donc la modification d'un fichier inclus
+ * sans avoir à suivre les dépendances entre traductions et fichiers inclus.</p>
+ *
+ * @serial exclude
+ * @see Jvs2Java
+ * @see <a href="IncludeResolver.java.html">code source</a>
+ */
+public class IncludeResolver {
+    // @bean
+    public IncludeResolver() {
+    }
+
+    /**
+     * Recopie le contenu d'un fichier inclus.
+     * <p>Les imports vont dans l'entête, les autres lignes sont mises bout à bout dans le corps, les déclarations de package sont ignorées.</p>
+     *
+     * @param name     Le nom du fichier inclus, sans l'extension <tt>.jvs</tt>.
+     * @param head     L'entête du code Java où sont ajoutés les imports.
+     * @param body     Le corps du code Java où est ajouté le code inclus.
+     * @param included Les fichiers déjà inclus dans cette traduction, ce fichier et ceux qu'il inclut y sont ajoutés.
+     */
+    void expand(String name, StringBuilder head, StringBuilder body, Set<String> included) {
+        // Un fichier déjà inclus dans cette traduction n'est ni recopié ni revérifié
+        if (!included.add(name)) {
+            return;
+        }
+        Include include = resolve(name);
+        if (include == null) {
+            body.append(" - Impossible de lire correctement le fichier  inclure !!");
+            return;
+        }
+        for (String line : include.imports)
+            head.append(line);
+        for (String[] part : include.parts)
+            if (part[1] == null) {
+                body.append(part[0]);
+            } else {
+                body.append("/* include ").append(part[1]).append("; */ ");
+                expand(part[1], head, body, included);
+            }
+    }
+
+    // Renvoie le fichier inclus découpé, relu si il a été modifié ou si sa date n'est pas connue, ou null si il ne peut être lu
+    private Include resolve(String name) {
+        long lastModified = getLastModified(name);
+        Include include = includes.get(name);
+        if (include != null && lastModified != 0 && include.lastModified == lastModified) {
+            return include;
+        }
+        try {
+            include = new Include(FileManager.load(name + ".jvs"), lastModified);
+        } catch (Exception e) {
+            includes.remove(name);
+            return null;
+        }
+        if (lastModified == 0) {
+            includes.remove(name);
+        } else {
+            includes.put(name, include);
+        }
+        return include;
+    }
+
+    // Renvoie la date de modification d'un fichier inclus, ou 0 si elle n'est pas connue
+    private static long getLastModified(String name) {
+        try {
+            return FileManager.getLastModified(name + ".jvs");
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    // Fichier inclus découpé en imports et en parties de code
+    private static class Include {
+        private final long lastModified;
+        private final List<String> imports = new ArrayList<String>();
+        // Chaque partie est soit {code, null} soit {null, nom d'un fichier inclus}
+        private final List<String[]> parts = new ArrayList<String[]>();
+
+        private Include(String code, long lastModified) {
+            this.lastModified = lastModified;
+            for (String line : code.split("\n"))
+                if (Jvs2Java.isDirective(line, "import")) {
+                    imports.add(line);
+                } else if (Jvs2Java.isDirective(line, "include")) {
+                    parts.add(new String[]{null, Jvs2Java.getDirectiveArgument(line, "include")});
+                } else if (!Jvs2Java.isDirective(line, "package")) {
+                    parts.add(new String[]{line, null});
+                }
+        }
+    }
+
+    private final Map<String, Include> includes = new ConcurrentHashMap<String, Include>();
+}
@@ -21,7 +21,19 @@ package org.javascool.core;
 import org.javascool.tools.FileManager;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.jar.*;
 
 /**
@@ -34,6 +46,8 @@ public class JarManager {
 
     /**
      * Extrait une arborescence d'un jar.
+     * <p>Les entrées sont lues dans le répertoire central du jar, chaque dossier n'est créé qu'une fois,
+     * et les fichiers sont écrits en parallèle sur les processeurs disponibles.</p>
      *
      * @param jarFile  Jarre dont on extrait les fichiers.
      * @param destDir  Dossier où on déploie les fichiers.
@@ -42,39 +56,109 @@ public class JarManager {
     public static void jarExtract(String jarFile, String destDir, String jarEntry) {
         try {
             //ProgletsBuilder.log("Extract files from " + jarFile + " to " + destDir + ((!jarEntry.isEmpty()) ? " which start with " + jarEntry : ""), true);
-            JarFile jf = new JarFile(jarFile);
-            JarInputStream jip = new JarInputStream(new FileInputStream(jarFile));
-            Enumeration<JarEntry> entries = jf.entries();
-            JarEntry je;
-            while ((je = jip.getNextJarEntry()) != null) {
-                if ((jarEntry.isEmpty() ? true : je.getName().startsWith(jarEntry)) && !je.isDirectory() && !je.getName().contains("META-INF")) {
-                    File dest = new File(destDir + File.separator + je.getName());
-                    dest.getParentFile().mkdirs();
-                    copyStream(jip, new FileOutputStream(dest));
+            final JarFile jf = new JarFile(jarFile);
+            try {
+                final List<JarEntry> files = new ArrayList<JarEntry>();
+                Set<File> dirs = new HashSet<File>();
+                for (Enumeration<JarEntry> entries = jf.entries(); entries.hasMoreElements(); ) {
+                    JarEntry je = entries.nextElement();
+                    if ((jarEntry == null || je.getName().startsWith(jarEntry)) && !je.isDirectory() && !je.getName().contains("META-INF")) {
+                        files.add(je);
+                        File dir = new File(destDir + File.separator + je.getName()).getParentFile();
+                        if (dirs.add(dir)) {
+                            dir.mkdirs();
+                        }
+                    }
+                }
+                final String dest = destDir + File.separator;
+                final int threads = Math.min(Runtime.getRuntime().availableProcessors(), 1 + files.size() / EXTRACT_BATCH);
+                if (threads <= 1) {
+                    extract(jf, files, 0, 1, dest);
+                } else {
+                    ExecutorService pool = Executors.newFixedThreadPool(threads);
+                    try {
+                        List<Future<Object>> parts = new ArrayList<Future<Object>>();
+                        for (int t = 0; t < threads; t++) {
+                            final int first = t;
+                            parts.add(pool.submit(new Callable<Object>() {
+                                public Object call() throws IOException {
+                                    extract(jf, files, first, threads, dest);
+                                    return null;
+                                }
+                            }));
+                        }
+                        for (Future<Object> part : parts)
+                            part.get();
+                    } finally {
+                        pool.shutdown();
+                    }
                 }
+            } finally {
+                jf.close();
             }
-            jip.close();
         } catch (Exception ex) {
             throw new IllegalStateException(ex);
         }
     }
 
+    // Nombre minimal d'entrées confiées à chaque thread d'extraction
+    private static final int EXTRACT_BATCH = 64;
+
+    // Extrait une entrée sur step à partir de first, avec un tampon de 64 ko
+    private static void extract(JarFile jf, List<JarEntry> files, int first, int step, String destDir) throws IOException {
+        byte data[] = new byte[64 * 1024];
+        for (int i = first; i < files.size(); i += step) {
+            JarEntry je = files.get(i);
+            InputStream in = jf.getInputStream(je);
+            try {
+                OutputStream out = new FileOutputStream(destDir + je.getName());
+                try {
+                    for (int c; (c = in.read(data)) != -1; )
+                        out.write(data, 0, c);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
     /**
      * @see #jarExtract(String, String, String)
      */
     public static void jarExtract(String jarFile, String destDir) {
-        jarExtract(jarFile, destDir, "");
+        jarExtract(jarFile, destDir, null);
     }
 
     /**
      * Crée un jar à partir d'une arborescence.
+     * <p>Le jar est reproductible : les dossiers puis les fichiers y sont rangés par ordre alphabétique, avec une date fixe.
+     * Les fichiers sont compressés en parallèle sur les processeurs disponibles.</p>
      *
      * @param jarFile    Jar à construire. Elle est détruite avant d'être crée.
      * @param manifest   Fichier de manifeste (obligatoire).
      * @param srcDir     Dossier source avec les fichiers à mettre en jarre.
      * @param jarEntries Racine des sous-dossiers à extraire. Si null extrait tout les fichiers.
+     * @see JarWriter
      */
     public static void jarCreate(String jarFile, Manifest manifest, String srcDir, String[] jarEntries) {
+        jarCreate(jarFile, manifest, srcDir, jarEntries, null);
+    }
+
+    /**
+     * Crée un jar à partir d'une arborescence, en y fusionnant des jars dépendants.
+     * <p>Les entrées des jars dépendants sont recopiées à la suite de l'arborescence avec leurs données compressées, sans extraction ni recompression,
+     * sauf celles de <tt>META-INF</tt>. Une entrée déjà présente n'est pas recopiée : l'arborescence, puis le premier jar qui la contient, l'emportent.</p>
+     *
+     * @param jarFile    Jar à construire. Elle est détruite avant d'être crée.
+     * @param manifest   Fichier de manifeste (obligatoire).
+     * @param srcDir     Dossier source avec les fichiers à mettre en jarre.
+     * @param jarEntries Racine des sous-dossiers à extraire. Si null extrait tout les fichiers.
+     * @param mergedJars Jars dont les entrées sont fusionnées. Si null aucun jar n'est fusionné.
+     * @see JarWriter#putEntries(String, JarWriter.Filter)
+     */
+    public static void jarCreate(String jarFile, Manifest manifest, String srcDir, String[] jarEntries, String[] mergedJars) {
         try {
             //ProgletsBuilder.log("Création du jar " + jarFile, true);
             File parent = new File(jarFile).getParentFile();
@@ -83,16 +167,104 @@ public class JarManager {
             }
             new File(jarFile).delete();
             srcDir = new File(srcDir).getCanonicalPath();
-            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
-            JarOutputStream target = new JarOutputStream(new FileOutputStream(jarFile), manifest);
-            copyFileToJar(new File(srcDir), target, new File(srcDir), jarEntries);
-            target.close();
+            TreeMap<String, File> dirs = new TreeMap<String, File>(), files = new TreeMap<String, File>();
+            listFiles(new File(srcDir), new File(srcDir), jarEntries, dirs, files);
+            JarWriter target = new JarWriter(new FileOutputStream(jarFile));
+            try {
+                target.putManifest(manifest);
+                for (String dir : dirs.keySet())
+                    target.putDirectory(dir);
+                writeDeflated(target, files);
+                if (mergedJars != null) {
+                    JarWriter.Filter filter = new JarWriter.Filter() {
+                        public boolean accept(String name) {
+                            return !name.contains("META-INF");
+                        }
+                    };
+                    for (String mergedJar : mergedJars)
+                        target.putEntries(mergedJar, filter);
+                }
+            } finally {
+                target.close();
+            }
         } catch (Exception ex) {
             ex.printStackTrace();
             throw new RuntimeException(ex);
         }
     }
 
+    // Liste les dossiers et fichiers à mettre dans un jar, par nom d'entrée
+    private static void listFiles(File source, File root, String[] jarEntries, Map<String, File> dirs, Map<String, File> files) {
+        // Teste si la source est dans les fichier à extraire
+        if (jarEntries != null) {
+            boolean skip = true;
+            for (String jarEntry : jarEntries) {
+                String entry = root.toString() + File.separator + jarEntry;
+                skip &= !(entry.startsWith(source.toString()) | source.toString().startsWith(entry));
+            }
+            if (skip) {
+                return;
+            }
+        }
+        String name = source.getPath().replace(root.getAbsolutePath() + File.separator, "").replace(File.separator, "/");
+        if (source.isDirectory()) {
+            if (!name.isEmpty() && (!source.equals(root))) {
+                dirs.put(name.endsWith("/") ? name : name + "/", source);
+            }
+            for (File nestedFile : source.listFiles())
+                listFiles(nestedFile, root, jarEntries, dirs, files);
+        } else {
+            files.put(name, source);
+        }
+    }
+
+    // Compresse les fichiers en parallèle, et les écrit dans l'ordre des noms d'entrée
+    private static void writeDeflated(JarWriter target, Map<String, File> files) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            // Au plus 4 fichiers compressés par thread attendent d'être écrits
+            LinkedList<Future<JarWriter.Entry>> window = new LinkedList<Future<JarWriter.Entry>>();
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                final String name = file.getKey();
+                final File source = file.getValue();
+                FutureTask<JarWriter.Entry> task = new FutureTask<JarWriter.Entry>(new Callable<JarWriter.Entry>() {
+                    public JarWriter.Entry call() throws IOException {
+                        return JarWriter.deflate(name, readFile(source));
+                    }
+                });
+                if (pool == null) {
+                    task.run();
+                } else {
+                    pool.execute(task);
+                }
+                window.add(task);
+                if (window.size() >= 4 * threads) {
+                    target.putEntry(window.removeFirst().get());
+                }
+            }
+            while (!window.isEmpty()) {
+                target.putEntry(window.removeFirst().get());
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    // Lit le contenu d'un fichier
+    private static byte[] readFile(File file) throws IOException {
+        byte data[] = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
     /**
      * @see #jarCreate(String, java.util.jar.Manifest, String, String[])
      */
@@ -115,68 +287,20 @@ public class JarManager {
                 }
             }
         } else {
-            new File(dstDir).getParentFile().mkdirs();
+            new File(dstDir).getAbsoluteFile().getParentFile().mkdirs();
             copyStream(new FileInputStream(srcDir), new FileOutputStream(dstDir));
         }
     }
 
-    // Ajoute un stream a un jar
-    private static void copyFileToJar(File source, JarOutputStream target, File root, String[] jarEntries) throws IOException {
-        // Teste si la source est dans les fichier à extraire
-        if (jarEntries != null) {
-            boolean skip = true;
-            for (String jarEntry : jarEntries) {
-                String entry = root.toString() + File.separator + jarEntry;
-                skip &= !(entry.startsWith(source.toString()) | source.toString().startsWith(entry));
-            }
-            if (skip) {
-                return;
-            }
-        }
-        BufferedInputStream in = null;
-        try {
-            if (source.isDirectory()) {
-                String name = source.getPath().replace(root.getAbsolutePath() + File.separator, "").replace(File.separator, "/");
-                if (!name.isEmpty() && (!source.equals(root))) {
-                    if (!name.endsWith("/")) {
-                        name += "/";
-                    }
-                    JarEntry entry = new JarEntry(name);
-                    entry.setTime(source.lastModified());
-                    target.putNextEntry(entry);
-                    target.closeEntry();
-                }
-                for (File nestedFile : source.listFiles())
-                    copyFileToJar(nestedFile, target, root, jarEntries);
-            } else {
-                JarEntry entry = new JarEntry(source.getPath().replace(root.getAbsolutePath() + File.separator, "").replace(File.separator, "/"));
-                entry.setTime(source.lastModified());
-                target.putNextEntry(entry);
-                copyStream(new BufferedInputStream(new FileInputStream(source)), target);
-            }
-        } catch (Throwable e) {
-            e.printStackTrace(System.out);
-            throw new IllegalStateException(e);
-        }
-    }
-
     // Copy un stream dans un autre
     private static void copyStream(InputStream in, OutputStream out) throws IOException {
-        InputStream i = in instanceof JarInputStream ? in : new BufferedInputStream(in, 2048);
-        OutputStream o = out instanceof JarOutputStream ? out : new BufferedOutputStream(out, 2048);
+        InputStream i = new BufferedInputStream(in, 2048);
+        OutputStream o = new BufferedOutputStream(out, 2048);
         byte data[] = new byte[2048];
         for (int c; (c = i.read(data, 0, 2048)) != -1; )
             o.write(data, 0, c);
-        if (o instanceof JarOutputStream) {
-            ((JarOutputStream) o).closeEntry();
-        } else {
-            o.close();
-        }
-        if (i instanceof JarInputStream) {
-            ((JarInputStream) i).closeEntry();
-        } else {
-            i.close();
-        }
+        o.close();
+        i.close();
     }
 
     /**
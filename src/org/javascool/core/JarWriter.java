@@ -0,0 +1,359 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Écrit un jar reproductible, à partir d'entrées éventuellement déjà compressées.
+ * <p>Contrairement à <tt>JarOutputStream</tt>, la compression des entrées est séparée de l'écriture :
+ * elle peut être faite en parallèle par {@link #deflate(String, byte[])}, puis les entrées sont écrites dans l'ordre voulu.</p>
+ * <p>Les entrées d'un jar existant peuvent être recopiées par {@link #putEntries(String, Filter)} avec leurs données compressées, sans être décompressées.</p>
+ * <p>Toutes les entrées ont la même date, de façon à ce que les mêmes entrées, dans le même ordre, donnent toujours le même jar à l'octet près.
+ * Une entrée déjà présente n'est pas écrite une seconde fois : la première l'emporte.</p>
+ * <p>Note: le format zip64 n'est pas géré, le jar est limité à 65535 entrées et 4 Go.</p>
+ *
+ * @serial exclude
+ * @see <a href="JarWriter.java.html">code source</a>
+ */
+public class JarWriter {
+    /**
+     * Ouvre l'écriture d'un jar.
+     *
+     * @param out Le flux où est écrit le jar, fermé par {@link #close()}.
+     */
+    public JarWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out, 64 * 1024);
+    }
+
+    private final OutputStream out;
+    private long offset = 0;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final List<Long> offsets = new ArrayList<Long>();
+    private final Set<String> names = new HashSet<String>();
+
+    /**
+     * Décrit une entrée du jar, avec ses données compressées.
+     */
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long crc, size;
+        private final byte[] data;
+        private final int dataOffset, dataLength;
+
+        /**
+         * Définit une entrée à partir de ses données compressées.
+         *
+         * @param name       Le nom de l'entrée.
+         * @param method     La méthode de compression : <tt>ZipEntry.STORED</tt> ou <tt>ZipEntry.DEFLATED</tt>.
+         * @param crc        Le CRC-32 des données décompressées.
+         * @param size       La taille des données décompressées.
+         * @param data       Le tableau qui contient les données compressées.
+         * @param dataOffset La position des données compressées dans le tableau.
+         * @param dataLength La taille des données compressées.
+         */
+        public Entry(String name, int method, long crc, long size, byte[] data, int dataOffset, int dataLength) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+        }
+
+        /**
+         * Renvoie le nom de l'entrée.
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Compresse le contenu d'une entrée ; peut être appelé en parallèle.
+     * <p>Si la compression ne réduit pas la taille, le contenu est conservé tel quel.</p>
+     *
+     * @param name Le nom de l'entrée.
+     * @param data Le contenu de l'entrée.
+     * @return L'entrée à écrire.
+     */
+    public static Entry deflate(String name, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+            }
+            if (compressed.size() < data.length) {
+                byte[] bytes = compressed.toByteArray();
+                return new Entry(name, DEFLATED, crc.getValue(), data.length, bytes, 0, bytes.length);
+            }
+            return new Entry(name, STORED, crc.getValue(), data.length, data, 0, data.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    private static long readInt(byte[] data, int offset) {
+        return readShort(data, offset) | ((long) readShort(data, offset + 2) << 16);
+    }
+
+    /**
+     * Écrit le manifeste, précédé du dossier <tt>META-INF/</tt> : à faire en premier.
+     *
+     * @param manifest Le manifeste, sa version est fixée à 1.0 si elle n'est pas définie.
+     */
+    public void putManifest(Manifest manifest) throws IOException {
+        if (manifest.getMainAttributes().getValue(Attributes.Name.MANIFEST_VERSION) == null) {
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        manifest.write(bytes);
+        putDirectory("META-INF/");
+        putEntry(deflate(JarFile.MANIFEST_NAME, bytes.toByteArray()));
+    }
+
+    /**
+     * Écrit une entrée de dossier.
+     *
+     * @param name Le nom du dossier, terminé par <tt>/</tt>.
+     * @return La valeur false si l'entrée était déjà présente.
+     */
+    public boolean putDirectory(String name) throws IOException {
+        return putEntry(new Entry(name.endsWith("/") ? name : name + "/", STORED, 0, 0, new byte[0], 0, 0));
+    }
+
+    /**
+     * Écrit une entrée.
+     *
+     * @param entry L'entrée, obtenue par {@link #deflate(String, byte[])} ou avec des données déjà compressées.
+     * @return La valeur false si l'entrée était déjà présente.
+     */
+    public boolean putEntry(Entry entry) throws IOException {
+        if (!begin(entry)) {
+            return false;
+        }
+        out.write(entry.data, entry.dataOffset, entry.dataLength);
+        offset += entry.dataLength;
+        return true;
+    }
+
+    /**
+     * Sélectionne les entrées d'un jar à recopier.
+     */
+    public interface Filter {
+        /**
+         * Renvoie true si l'entrée de ce nom doit être recopiée.
+         */
+        boolean accept(String name);
+    }
+
+    /**
+     * Recopie les entrées d'un jar existant, avec leurs données compressées telles quelles, dans l'ordre de son répertoire central.
+     * <p>Seuls l'enregistrement de fin et le répertoire central sont lus en mémoire, les données de chaque entrée sont recopiées par morceaux.
+     * Les noms sont lus en UTF-8 si l'entrée le déclare, sinon dans le codage historique du format zip (CP437), ou à défaut en ISO-8859-1.</p>
+     *
+     * @param jarFile Le jar à recopier.
+     * @param filter  Les entrées à recopier, ou null pour toutes les recopier.
+     * @return Le nombre d'entrées écrites, une entrée déjà présente n'étant pas écrite.
+     * @throws IOException Si le jar est illisible, au format zip64, ou si une entrée recopiée est chiffrée ou compressée autrement que par <tt>DEFLATED</tt>.
+     */
+    public int putEntries(String jarFile, Filter filter) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(jarFile), "r");
+        try {
+            long length = file.length();
+            // L'enregistrement de fin est suivi d'un commentaire d'au plus 65535 octets
+            byte[] tail = new byte[(int) Math.min(length, 22 + 0xFFFF)];
+            file.seek(length - tail.length);
+            file.readFully(tail);
+            int end = tail.length - 22;
+            while (end >= 0 && readInt(tail, end) != 0x06054b50) {
+                end--;
+            }
+            if (end < 0) {
+                throw new IOException("Répertoire central introuvable : " + jarFile);
+            }
+            int count = readShort(tail, end + 10);
+            long size = readInt(tail, end + 12), position = readInt(tail, end + 16);
+            if (count == 0xFFFF || size == 0xFFFFFFFFL || position == 0xFFFFFFFFL) {
+                throw new IOException("Le format zip64 n'est pas géré : " + jarFile);
+            }
+            if (position + size > length) {
+                throw new IOException("Répertoire central invalide : " + jarFile);
+            }
+            byte[] directory = new byte[(int) size], local = new byte[30], buffer = new byte[64 * 1024];
+            file.seek(position);
+            file.readFully(directory);
+            int written = 0;
+            for (int i = 0, p = 0; i < count; i++) {
+                if (p + 46 > directory.length || readInt(directory, p) != 0x02014b50) {
+                    throw new IOException("Répertoire central invalide : " + jarFile);
+                }
+                int flags = readShort(directory, p + 8), method = readShort(directory, p + 10), nameLength = readShort(directory, p + 28);
+                long crc = readInt(directory, p + 16), compressedSize = readInt(directory, p + 20), entrySize = readInt(directory, p + 24),
+                        header = readInt(directory, p + 42);
+                if (p + 46 + nameLength > directory.length) {
+                    throw new IOException("Répertoire central invalide : " + jarFile);
+                }
+                String name = new String(directory, p + 46, nameLength, (flags & UTF8_FLAG) != 0 ? UTF8 : LEGACY_CHARSET);
+                p += 46 + nameLength + readShort(directory, p + 30) + readShort(directory, p + 32);
+                if ((filter != null && !filter.accept(name)) || names.contains(name)) {
+                    continue;
+                }
+                if ((flags & 1) != 0 || (method != STORED && method != DEFLATED)) {
+                    throw new IOException("Entrée chiffrée ou méthode de compression " + method + " non gérée : " + name + " dans " + jarFile);
+                }
+                if (compressedSize > Integer.MAX_VALUE || entrySize == 0xFFFFFFFFL || header == 0xFFFFFFFFL) {
+                    throw new IOException("Le format zip64 n'est pas géré : " + jarFile);
+                }
+                file.seek(header);
+                file.readFully(local);
+                if (readInt(local, 0) != 0x04034b50) {
+                    throw new IOException("Entête local invalide : " + name + " dans " + jarFile);
+                }
+                // Les données suivent l'entête local, dont les longueurs du nom et des extras peuvent différer du répertoire central
+                long data = header + 30 + readShort(local, 26) + readShort(local, 28);
+                if (data + compressedSize > length) {
+                    throw new IOException("Entrée tronquée : " + name + " dans " + jarFile);
+                }
+                begin(new Entry(name, method, crc, entrySize, null, 0, (int) compressedSize));
+                file.seek(data);
+                for (long remaining = compressedSize; remaining > 0; ) {
+                    int n = (int) Math.min(buffer.length, remaining);
+                    file.readFully(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+                offset += compressedSize;
+                written++;
+            }
+            return written;
+        } finally {
+            file.close();
+        }
+    }
+
+    // Écrit l'entête local d'une entrée, que ses données compressées doivent suivre, ou renvoie false si l'entrée est déjà présente
+    private boolean begin(Entry entry) throws IOException {
+        if (!names.add(entry.name)) {
+            return false;
+        }
+        if (entries.size() == 0xFFFF || offset + entry.dataLength > 0xFFFFFFFFL) {
+            throw new IOException("Jar trop grand, le format zip64 n'est pas géré");
+        }
+        entries.add(entry);
+        offsets.add(offset);
+        byte[] name = toBytes(entry.name);
+        writeInt(0x04034b50);
+        writeHeader(entry, name);
+        writeShort(0);
+        out.write(name);
+        offset += 30 + name.length;
+        return true;
+    }
+
+    /**
+     * Renvoie true si une entrée de ce nom a déjà été écrite.
+     */
+    public boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * Termine le jar en écrivant le répertoire central, et ferme le flux.
+     */
+    public void close() throws IOException {
+        long start = offset;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            byte[] name = toBytes(entry.name);
+            writeInt(0x02014b50);
+            writeShort(VERSION);
+            writeHeader(entry, name);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(offsets.get(i));
+            out.write(name);
+            offset += 46 + name.length;
+        }
+        writeInt(0x06054b50);
+        writeShort(0);
+        writeShort(0);
+        writeShort(entries.size());
+        writeShort(entries.size());
+        writeInt(offset - start);
+        writeInt(start);
+        writeShort(0);
+        out.close();
+    }
+
+    // Écrit la partie commune aux entêtes local et central, jusqu'à la longueur du nom
+    private void writeHeader(Entry entry, byte[] name) throws IOException {
+        writeShort(VERSION);
+        writeShort(UTF8_FLAG);
+        writeShort(entry.method);
+        writeShort(DOS_TIME);
+        writeShort(DOS_DATE);
+        writeInt(entry.crc);
+        writeInt(entry.dataLength);
+        writeInt(entry.size);
+        writeShort(name.length);
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xFFFF));
+        writeShort((int) ((value >> 16) & 0xFFFF));
+    }
+
+    private static byte[] toBytes(String name) {
+        try {
+            return name.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static final int STORED = 0, DEFLATED = 8;
+    private static final int VERSION = 20, UTF8_FLAG = 0x800;
+    private static final Charset UTF8 = Charset.forName("UTF-8"),
+            LEGACY_CHARSET = Charset.isSupported("IBM437") ? Charset.forName("IBM437") : Charset.forName("ISO-8859-1");
+    // Date fixe des entrées : le 1er février 1980 à 0h, au format MS-DOS
+    private static final int DOS_DATE = (0 << 9) | (2 << 5) | 1, DOS_TIME = 0;
+}
@@ -3,10 +3,18 @@
  **************************************************************/
 package org.javascool.core;
 
+import javax.tools.*;
 import java.io.*;
-import java.lang.reflect.Method;
-import java.util.Hashtable;
-import java.util.regex.Pattern;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Définit le mécanisme de compilation en ligne d'un code Java et du chargement de la classe obtenue.
@@ -24,7 +32,7 @@ public class Java2Class {
      * Compile dans le système de fichier local, un code source Java.
      * <p>Les fichiers <tt>.class</tt> sont générés sur place.</p>
      * <p>Les erreurs de compilation sont affichées dans la console.</p>
-     * <p>Les erreurs les plus courantes sont reformulées en français.</p>
+     * <p>Les erreurs les plus courantes sont reformulées en français, voir {@link CompileDiagnostic}.</p>
      * <p>Les portions de code de la forme <tt>/*<i>code-jvs</i> @&lt;nojavac*</tt><tt>/<i>code-java-derive</ii>/*@nojavac>*</tt><tt>/</tt> issus de pseudo-code retraduit en Java par un <a href="Translator.html">Translator</a> sont traités pour que seul le <i>code-jvs</i> soit affiché en cas d'erreur de syntaxe.</p>
      *
      * @param javaFile  Le nom du fichier à compiler. Un tableau de noms de fichiers peut être donné.
@@ -62,156 +70,468 @@ public class Java2Class {
         if (javaFiles.length == 0) {
             return false;
         }
-        if(path==null){
-            path=new String[0];
-        }
-        // Appel du compilateur SUN par sa méthode main
-        int options = path.length==0?2:4;
-        String args[] = new String[options + javaFiles.length];
-        args[0] = "-g";
-        args[1] = "-nowarn";
-        System.arraycopy(javaFiles, 0, args, options, javaFiles.length);
-        if(path!=null){
-            args[2]="-cp";
-            StringBuilder fpath=new StringBuilder();
-            fpath.append(path[0]);
-            for (int x=1;x<path.length;++x)
-                fpath.append(File.pathSeparator).append(path[x]);
-            args[3]= fpath.toString();
-        }
-        StringWriter out = new StringWriter();
-        Method javac;
+        // Appel du compilateur SUN avec un contexte de compilation réutilisable
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        CompilerPool.Context context = CompilerPool.borrow(path);
+        boolean healthy = false;
         try {
-            javac = Class.forName("com.sun.tools.javac.Main").
-                    getDeclaredMethod("compile", Class.forName("[Ljava.lang.String;"), Class.forName("java.io.PrintWriter"));
+            context.compiler.getTask(null, context.fileManager, diagnostics, OPTIONS, null, context.fileManager.getJavaFileObjects(javaFiles)).call();
+            healthy = true;
         } catch (Exception e) {
-            throw new IllegalStateException("Impossible d'accéder au compilateur javac : " + e);
+            throw new IllegalStateException("Erreur système lors du lancement du compilateur javac : " + e);
+        } finally {
+            CompilerPool.release(context, healthy);
+        }
+        String sout = CompileDiagnostic.toString(CompileDiagnostic.of(diagnostics.getDiagnostics(), allErrors), javaFiles.length > 1);
+        // Impression du message d'erreur si il existe et retour du statut
+        if (sout.length() > 0) {
+            System.out.println(sout);
+        }
+        return sout.length() == 0;
+    }
+
+    /**
+     * Compile en mémoire un code source Java.
+     * <p>Ni les sources, ni les fichiers <tt>.class</tt> ne sont écrits dans le système de fichier : le bytecode est renvoyé dans le résultat.</p>
+     * <p>Les erreurs de compilation sont affichées dans la console, comme pour {@link #compile(String, boolean)}.</p>
+     * <p>Une compilation réussie est enregistrée, de façon à pouvoir ensuite être chargée par {@link #load(String)} à partir du nom de sa classe.</p>
+     *
+     * @param javaSources Les codes sources à compiler, indexés par le nom de leur classe. La première entrée est la classe principale.
+     * @param allErrors   Renvoie toutes les erreur si true, sinon uniquement la première erreur (par défaut).
+     * @param path        Le classpath de compilation, ou null si non défini.
+     * @return Le résultat de la compilation.
+     * @throws IllegalStateException Si le compilateur javac n'est pas accessible.
+     */
+    public static Compilation compileInMemory(Map<String, String> javaSources, boolean allErrors, String[] path) {
+        if (javaSources.isEmpty()) {
+            throw new IllegalArgumentException("Aucun code source à compiler");
+        }
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        MemoryFileManager fileManager = run(javaSources, path, diagnostics);
+        List<CompileDiagnostic> errors = CompileDiagnostic.of(diagnostics.getDiagnostics(), allErrors);
+        boolean success = errors.isEmpty();
+        String sout = CompileDiagnostic.toString(errors, javaSources.size() > 1);
+        if (sout.length() > 0) {
+            System.out.println(sout);
+        }
+        Compilation compilation = new Compilation(javaSources.keySet().iterator().next(),
+                success ? fileManager.getClasses(null) : new HashMap<String, byte[]>(), errors, sout);
+        register(compilation);
+        return compilation;
+    }
+
+    /**
+     * Compile en mémoire un lot de programmes indépendants, en une seule invocation du compilateur.
+     * <p>Le démarrage de javac et le chargement du classpath sont ainsi partagés par tout le lot.</p>
+     * <p>Les programmes qui ne contiennent pas d'erreur sont recompilés ensemble une seconde fois si d'autres programmes du lot en contiennent,
+     * car javac ne génère alors aucun bytecode.</p>
+     * <p>Contrairement à {@link #compileInMemory(java.util.Map, boolean, String[])}, les erreurs de compilation ne sont pas affichées dans la console,
+     * elles sont uniquement renvoyées dans le résultat de chaque programme.</p>
+     *
+     * @param javaSources Les codes sources à compiler, indexés par le nom de leur classe. Chaque code source est un programme indépendant.
+     * @param allErrors   Renvoie toutes les erreur si true, sinon uniquement la première erreur (par défaut).
+     * @param path        Le classpath de compilation, ou null si non défini.
+     * @return Le résultat de la compilation de chaque programme, indexé par le nom de sa classe, dans l'ordre des codes sources.
+     * @throws IllegalStateException Si le compilateur javac n'est pas accessible.
+     */
+    public static Map<String, Compilation> compileBatch(Map<String, String> javaSources, boolean allErrors, String[] path) {
+        Map<String, Compilation> compilations = new HashMap<String, Compilation>();
+        Map<String, String> pending = new LinkedHashMap<String, String>(javaSources);
+        while (!pending.isEmpty()) {
+            DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+            MemoryFileManager fileManager = run(pending, path, diagnostics);
+            // Répartition des diagnostics par programme
+            Map<String, List<Diagnostic<? extends JavaFileObject>>> sourceDiagnostics = new HashMap<String, List<Diagnostic<? extends JavaFileObject>>>();
+            List<Diagnostic<? extends JavaFileObject>> globalDiagnostics = new ArrayList<Diagnostic<? extends JavaFileObject>>();
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (diagnostic.getSource() instanceof MemorySource) {
+                    String className = ((MemorySource) diagnostic.getSource()).className;
+                    if (!sourceDiagnostics.containsKey(className)) {
+                        sourceDiagnostics.put(className, new ArrayList<Diagnostic<? extends JavaFileObject>>());
+                    }
+                    sourceDiagnostics.get(className).add(diagnostic);
+                } else {
+                    globalDiagnostics.add(diagnostic);
+                }
+            }
+            Map<String, String> retry = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, String> source : pending.entrySet()) {
+                String className = source.getKey();
+                List<CompileDiagnostic> errors = CompileDiagnostic.of(sourceDiagnostics.containsKey(className) ?
+                        sourceDiagnostics.get(className) : Collections.<Diagnostic<? extends JavaFileObject>>emptyList(), allErrors);
+                Map<String, byte[]> classes = fileManager.getClasses(className);
+                if (!errors.isEmpty()) {
+                    compilations.put(className, new Compilation(className, new HashMap<String, byte[]>(), errors, CompileDiagnostic.toString(errors, false)));
+                } else if (!classes.isEmpty()) {
+                    Compilation compilation = new Compilation(className, classes, errors, "");
+                    register(compilation);
+                    compilations.put(className, compilation);
+                } else {
+                    retry.put(className, source.getValue());
+                }
+            }
+            // Échec global du compilateur, sans erreur attribuable à un programme
+            if (retry.size() == pending.size()) {
+                List<CompileDiagnostic> errors = CompileDiagnostic.of(globalDiagnostics, allErrors);
+                if (errors.isEmpty()) {
+                    errors.add(new CompileDiagnostic(null, -1, -1, "compiler.err.error", "Erreur système du compilateur javac", null));
+                }
+                for (String className : retry.keySet())
+                    compilations.put(className, new Compilation(className, new HashMap<String, byte[]>(), errors, CompileDiagnostic.toString(errors, false)));
+                break;
+            }
+            pending = retry;
         }
+        Map<String, Compilation> results = new LinkedHashMap<String, Compilation>();
+        for (String className : javaSources.keySet())
+            results.put(className, compilations.get(className));
+        return results;
+    }
+
+    // Lance une compilation en mémoire avec un contexte de compilation réutilisable
+    private static MemoryFileManager run(Map<String, String> javaSources, String[] path, DiagnosticListener<JavaFileObject> diagnostics) {
+        List<JavaFileObject> units = new ArrayList<JavaFileObject>();
+        for (Map.Entry<String, String> source : javaSources.entrySet())
+            units.add(new MemorySource(source.getKey(), source.getValue()));
+        CompilerPool.Context context = CompilerPool.borrow(path);
+        MemoryFileManager fileManager = new MemoryFileManager(context.fileManager);
+        boolean healthy = false;
         try {
-            javac.invoke(null, (Object) args, new PrintWriter(out));
+            context.compiler.getTask(null, fileManager, diagnostics, OPTIONS, null, units).call();
+            healthy = true;
         } catch (Exception e) {
             throw new IllegalStateException("Erreur système lors du lancement du compilateur javac : " + e);
+        } finally {
+            CompilerPool.release(context, healthy);
+        }
+        return fileManager;
+    }
+
+    /**
+     * @see #compileInMemory(java.util.Map, boolean, String[])
+     */
+    public static Compilation compileInMemory(String className, String javaCode, boolean allErrors, String[] path) {
+        Map<String, String> javaSources = new LinkedHashMap<String, String>();
+        javaSources.put(className, javaCode);
+        return compileInMemory(javaSources, allErrors, path);
+    }
+
+    /**
+     * Options passées au compilateur javac.
+     */
+    static final List<String> OPTIONS = Collections.unmodifiableList(Arrays.asList("-g", "-nowarn"));
+
+    // Compilations en mémoire réussies, indexées par le nom de leur classe principale, avec leur nombre d'enregistrements
+    private static final Map<String, Compilation> compiled = new ConcurrentHashMap<String, Compilation>();
+    private static final Map<String, Integer> registrations = new HashMap<String, Integer>();
+
+    /**
+     * Enregistre une compilation en mémoire réussie, pour qu'elle puisse être chargée par son nom avec {@link #load(String)}.
+     * <p>Les compilations faites par cette classe sont enregistrées d'office.
+     * Une compilation reprise d'un cache doit être enregistrée à nouveau par chacun de ses utilisateurs, qui la libèrent ensuite par {@link #release(String)}.</p>
+     *
+     * @param compilation Le résultat d'une compilation, ignoré si elle a échoué.
+     */
+    public static void register(Compilation compilation) {
+        if (compilation.isSuccess()) {
+            synchronized (registrations) {
+                Integer count = registrations.get(compilation.getClassName());
+                registrations.put(compilation.getClassName(), count == null ? 1 : count + 1);
+                compiled.put(compilation.getClassName(), compilation);
+            }
         }
-        // Traitement du message de sortie
-        {
-            String sout = out.toString().trim();
-            // Coupure à la première erreur
-            if ((sout.indexOf("^") != -1) && !allErrors) {
-                sout = sout.substring(0, sout.indexOf("^") + 1);
+    }
+
+    /**
+     * Libère un enregistrement d'une compilation en mémoire.
+     * <p>Quand tous ses enregistrements sont libérés, la compilation ne peut plus être chargée par son nom et son bytecode n'est plus retenu ;
+     * les classes déjà chargées sont déchargées par le ramasse-miettes dès que le programme n'est plus utilisé.</p>
+     *
+     * @param className Le nom de la classe principale de la compilation.
+     * @return La valeur true si la compilation n'est plus enregistrée, sinon false.
+     */
+    public static boolean release(String className) {
+        synchronized (registrations) {
+            Integer count = registrations.get(className);
+            if (count == null) {
+                return true;
             }
-            if (javaFiles.length > 1) {
-                // Remplacement des chemins des sources par leur simple nom
-                for (String javaFile : javaFiles)
-                    sout = sout.replaceAll(Pattern.quote(new File(javaFile).getParent() + File.separator), "\n");
-                // Explicitation du numéro de ligne
-                for (String javaFile : javaFiles)
-                    sout = sout.replaceAll("(" + Pattern.quote(new File(javaFile).getName()) + "):([0-9]+):", "$1 : erreur de syntaxe ligne $2 :\n ");
-            } else {
-                sout = sout.replaceAll("(" + Pattern.quote(new File(javaFiles[0]).getPath()) + "):([0-9]+):", "\n Erreur de syntaxe ligne $2 :\n ");
-                sout = sout.replaceAll(Pattern.quote(new File(javaFiles[0]).getName().replaceFirst("java$", "")), "");
+            if (count > 1) {
+                registrations.put(className, count - 1);
+                return false;
             }
-            // Escape des constructions dérivée d' un Translator
-            sout = sout.replaceAll("/\\*(.*)@<nojavac.*@nojavac>\\*/", "$1");
-            // Passage en français des principaux diagnostics
-            sout = sout.replaceAll("not a statement",
-                    "L'instruction n'est pas valide.\n (Il se peut qu'une variable indiquée n'existe pas)");
-            sout = sout.replaceAll("';' expected",
-                    "Un ';' est attendu (il peut manquer, ou une parenthèse être incorrecte, ..)");
-            sout = sout.replaceAll("cannot find symbol\\s*symbol\\s*:\\s*([^\\n]*)[^:]*:\\s*(.*)",
-                    "Il y a un symbole non-défini à cette ligne : «$1» (utilisez-vous la bonne proglet ?)");
-            sout = sout.replaceAll("illegal start of expression",
-                    "($0) L'instruction (ou la précédente) est tronquée ou mal écrite");
-            sout = sout.replaceAll("class, interface, or enum expected",
-                    "($0) Il y a probablement une erreur dans les accolades (peut-être trop de '}')");
-            sout = sout.replaceAll("'.class' expected",
-                    "($0) Il manque des accolades ou des parenthèses pour définir l'instruction");
-            sout = sout.replaceAll("incompatible\\Wtypes\\W*found\\W*:\\W([A-Za-z\\.]*)\\Wrequired:\\W([A-Za-z\\.]*)",
-                    "Vous avez mis une valeur de type $1 alors qu'il faut une valeur de type $2");
-            // Elimination des notes de warning de fin de compilation
-            if (sout.indexOf("Note:") != -1) {
-                sout = sout.substring(0, sout.indexOf("Note:")).trim();
+            registrations.remove(className);
+            compiled.remove(className);
+            return true;
+        }
+    }
+
+    /**
+     * Renvoie une compilation en mémoire enregistrée.
+     *
+     * @param className Le nom de la classe principale de la compilation.
+     * @return La compilation, ou null si elle n'est pas enregistrée.
+     */
+    public static Compilation getCompilation(String className) {
+        return compiled.get(className);
+    }
+
+    /**
+     * Renvoie le nombre de compilations en mémoire enregistrées.
+     */
+    public static int getRegisteredCount() {
+        return compiled.size();
+    }
+
+    /**
+     * Renvoie le nombre de chargeurs de programmes encore en mémoire.
+     * <p>Un chargeur n'est plus compté dès que le ramasse-miettes l'a récupéré.</p>
+     */
+    public static int getLiveLoaders() {
+        expungeLoaders();
+        return loaders.size();
+    }
+
+    /**
+     * Renvoie le nombre de classes de programmes définies par les chargeurs encore en mémoire.
+     */
+    public static long getLiveClasses() {
+        expungeLoaders();
+        return liveClasses.get();
+    }
+
+    /**
+     * Renvoie le nombre de chargeurs de programmes créés depuis le démarrage.
+     */
+    public static long getCreatedLoaders() {
+        return createdLoaders.get();
+    }
+
+    /**
+     * Renvoie la mémoire utilisée pour les classes par la machine virtuelle (Metaspace, ou PermGen avant Java 8), en octets, ou -1 si elle n'est pas connue.
+     */
+    public static long getMetaspaceUsed() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getName().equals("Metaspace") || pool.getName().endsWith("Perm Gen")) {
+                return pool.getUsage().getUsed();
             }
-            // Impression du message d'erreur si il existe et retour du statut
-            if (sout.length() > 0) {
-                System.out.println(sout);
+        return -1;
+    }
+
+    // Oublie les chargeurs récupérés par le ramasse-miettes
+    private static void expungeLoaders() {
+        for (Reference<?> reference; (reference = collectedLoaders.poll()) != null; ) {
+            if (loaders.remove(reference)) {
+                liveClasses.addAndGet(-((LoaderReference) reference).classes.get());
             }
-            return sout.length() == 0;
         }
     }
 
+    // Référence faible vers un chargeur, qui garde le compte des classes qu'il a définies
+    private static class LoaderReference extends WeakReference<JVSClassLoader> {
+        private final AtomicInteger classes;
 
+        private LoaderReference(JVSClassLoader loader) {
+            super(loader, collectedLoaders);
+            this.classes = loader.classes;
+        }
+    }
+
+    private static final ReferenceQueue<JVSClassLoader> collectedLoaders = new ReferenceQueue<JVSClassLoader>();
+    private static final Set<LoaderReference> loaders = Collections.newSetFromMap(new ConcurrentHashMap<LoaderReference, Boolean>());
+    private static final AtomicLong liveClasses = new AtomicLong(), createdLoaders = new AtomicLong();
 
     /**
      * Charge dynamiquement une classe Java qui implémente un Runnable, pour son e×écution au cours d'une session.
+     * <p>Si le chemin correspond au nom d'une classe compilée en mémoire, celle-ci est chargée sans accès au système de fichier.</p>
      *
-     * @param path Le chemin vers la classe Java à charger. La classe ne doit pas appartenir à un package, c'est-à-dire au package "default".
+     * @param path Le chemin vers la classe Java à charger, ou le nom d'une classe compilée par {@link #compileInMemory(java.util.Map, boolean, String[])}. La classe ne doit pas appartenir à un package, c'est-à-dire au package "default".
      * @return Une instanciation de cette classe Java.
      * @throws IllegalArgumentException Si la classe n'est pas un Runnable.
      * @throws RuntimeException         Si une erreur d'entrée-sortie s'est produite lors du chargement.
      */
     public static Runnable load(String path) {
+        Compilation compilation = compiled.get(path.replaceAll("\\.class$", ""));
+        if (compilation != null) {
+            return load(compilation);
+        }
         try {
             File javaClass = new File(path).getAbsoluteFile();
             Class<?> j_class = new JVSClassLoader(javaClass.getParent()).loadClass(javaClass.getName().replaceAll("\\.class", ""));
-            Object o = j_class.newInstance();
-            if (!(o instanceof Runnable)) {
-                throw new IllegalArgumentException("Erreur: la classe de " + javaClass + " n'est pas un Runnable");
-            }
-            return (Runnable) o;
+            return instantiate(j_class, javaClass.toString());
         } catch (Throwable e) {
             throw new RuntimeException("Erreur: impossible de charger la classe de : " + path + e);
         }
     }
 
+    /**
+     * Charge dynamiquement la classe principale d'une compilation en mémoire, pour son exécution au cours d'une session.
+     *
+     * @param compilation Le résultat d'une compilation réussie.
+     * @return Une instanciation de cette classe Java.
+     * @throws IllegalArgumentException Si la classe n'est pas un Runnable.
+     * @throws RuntimeException         Si la classe ne peut être chargée.
+     */
+    public static Runnable load(Compilation compilation) {
+        try {
+            Class<?> j_class = new JVSClassLoader(compilation.getClasses()).loadClass(compilation.getClassName());
+            return instantiate(j_class, compilation.getClassName());
+        } catch (Throwable e) {
+            throw new RuntimeException("Erreur: impossible de charger la classe de : " + compilation.getClassName() + e);
+        }
+    }
+
+    // Instancie une classe qui doit être un Runnable
+    private static Runnable instantiate(Class<?> j_class, String name) throws Exception {
+        Object o = j_class.newInstance();
+        if (!(o instanceof Runnable)) {
+            throw new IllegalArgumentException("Erreur: la classe de " + name + " n'est pas un Runnable");
+        }
+        return (Runnable) o;
+    }
+
+    /**
+     * Charge les classes d'un programme compilé.
+     * <p>Chaque programme a son propre chargeur, qui ne définit que les classes du programme : en mémoire ou dans un répertoire.
+     * Les autres classes, en particulier celles de <tt>jvslib.jar</tt>, sont demandées au chargeur de WebJavac, parent partagé par tous les programmes :
+     * elles ne sont chargées qu'une fois, et ce chargeur garde lui-même les classes déjà chargées.</p>
+     */
     static class JVSClassLoader extends ClassLoader {
         private String location = null;
-        private Hashtable classes = new Hashtable();
+        private Map<String, byte[]> bytecodes = null;
+        private final AtomicInteger classes = new AtomicInteger();
 
         public JVSClassLoader(String location) {
-            super(JVSClassLoader.class.getClassLoader()); //calls the parent class loader's constructor
+            super(JVSClassLoader.class.getClassLoader());
             this.location = location;
+            track();
+        }
+
+        public JVSClassLoader(Map<String, byte[]> bytecodes) {
+            super(JVSClassLoader.class.getClassLoader());
+            this.bytecodes = bytecodes;
+            track();
         }
 
-        public Class loadClass(String className) throws ClassNotFoundException {
-            return findClass(className);
+        // Suit le chargeur par une référence faible, pour savoir quand il est récupéré
+        private void track() {
+            expungeLoaders();
+            loaders.add(new LoaderReference(this));
+            createdLoaders.incrementAndGet();
         }
 
-        public Class findClass(String className) throws ClassNotFoundException {
-            byte classByte[];
-            Class result = null;
+        // Compte les classes définies par ce chargeur
+        private Class<?> define(String className, byte[] classByte) {
+            Class<?> result = defineClass(className, classByte, 0, classByte.length);
+            classes.incrementAndGet();
+            liveClasses.incrementAndGet();
+            return result;
+        }
 
-            result = (Class) classes.get(className); //checks in cached classes
-            if (result != null) {
-                return result;
+        // Les classes du programme sont cherchées avant celles du parent, les autres ne sont demandées qu'au parent
+        @Override
+        protected synchronized Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+            Class<?> result = findLoadedClass(className);
+            if (result == null) {
+                if (bytecodes != null && bytecodes.containsKey(className)) {
+                    result = define(className, bytecodes.get(className));
+                } else {
+                    try {
+                        result = getParent().loadClass(className);
+                    } catch (ClassNotFoundException e) {
+                        if (location == null) {
+                            throw e;
+                        }
+                        result = findClass(className);
+                    }
+                }
+            }
+            if (resolve) {
+                resolveClass(result);
             }
+            return result;
+        }
 
+        @Override
+        protected Class<?> findClass(String className) throws ClassNotFoundException {
+            File file = new File(location + File.separator + className + ".class");
             try {
-                return findSystemClass(className);
-            } catch (Exception e) {
+                DataInputStream in = new DataInputStream(new FileInputStream(file));
+                try {
+                    byte classByte[] = new byte[(int) file.length()];
+                    in.readFully(classByte);
+                    return define(className, classByte);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new ClassNotFoundException(e.toString());
             }
+        }
+    }
 
-            try{
-                return JVSClassLoader.class.getClassLoader().loadClass(className);
-            } catch(Exception e){}
+    // Source Java contenue dans une chaîne de caractères
+    static class MemorySource extends SimpleJavaFileObject {
+        final String className;
+        private final String code;
 
-            try {
-                FileInputStream in = new FileInputStream(location + File.separator + className + ".class");
-                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-                int nextValue = in.read();
-                while (-1 != nextValue) {
-                    byteStream.write(nextValue);
-                    nextValue = in.read();
-                }
+        MemorySource(String className, String code) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.className = className;
+            this.code = code;
+        }
 
-                classByte = byteStream.toByteArray();
-                result = defineClass(className, classByte, 0, classByte.length, null);
-                classes.put(className, result);
-                return result;
-            } catch (Exception e) {
-                throw new ClassNotFoundException(e.toString());
+        // Renvoie le nom sous lequel javac désigne la source d'une classe
+        static String getName(String className) {
+            return "/" + className.replace('.', '/') + Kind.SOURCE.extension;
+        }
+
+        @Override
+        public String getName() {
+            return getName(className);
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    // Gestionnaire de fichiers qui conserve en mémoire le bytecode produit par javac
+    static class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+        private final Map<String, ByteArrayOutputStream> outputs = new LinkedHashMap<String, ByteArrayOutputStream>();
+        private final Map<String, String> owners = new HashMap<String, String>();
+
+        MemoryFileManager(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, final String className, JavaFileObject.Kind kind, final FileObject sibling) throws IOException {
+            if (kind != JavaFileObject.Kind.CLASS) {
+                return super.getJavaFileForOutput(location, className, kind, sibling);
             }
-            //
+            return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    outputs.put(className, bytes);
+                    if (sibling instanceof MemorySource) {
+                        owners.put(className, ((MemorySource) sibling).className);
+                    }
+                    return bytes;
+                }
+            };
+        }
+
+        // Renvoie le bytecode produit à partir d'une source donnée, ou de toutes les sources si null, indexé par nom binaire de classe
+        Map<String, byte[]> getClasses(String source) {
+            Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+            for (Map.Entry<String, ByteArrayOutputStream> output : outputs.entrySet())
+                if (source == null || source.equals(owners.get(output.getKey()))) {
+                    classes.put(output.getKey(), output.getValue().toByteArray());
+                }
+            return classes;
         }
     }
 }
-
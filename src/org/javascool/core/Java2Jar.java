@@ -3,13 +3,24 @@
  **************************************************************/
 package org.javascool.core;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 
 /**
  * Définit le mécanisme de compilation en ligne d'un code Java et de création du Jar obtenu.
+ * <p>Les jars construits sont reproductibles et conservés dans un cache, indexé par l'empreinte des sources, des jars dépendants et des options :
+ * si rien n'a changé, le jar est repris du cache sans compilation.
+ * Sinon les sources sont compilées avec les jars dépendants dans le classpath, et ces jars sont fusionnés au jar construit sans être extraits.
+ * Le cache est le dossier donné par la propriété système <tt>webjavac.jarCache</tt> (par défaut <tt>webjavac-jars</tt> dans le dossier temporaire, la chaîne vide le désactive),
+ * il garde les <tt>webjavac.jarCacheCount</tt> (par défaut 32) jars les plus récemment utilisés.</p>
  *
  * @serial exclude
  * @see <a href="Java2Jar.java.html">code source</a>
@@ -21,7 +32,8 @@ public class Java2Jar {
 
     /**
      * Compile dans le système de fichier local, un code source Java.
-     * <p>Les fichiers <tt>.class</tt> sont générés dans sur place.</p>
+     * <p>Les fichiers <tt>.class</tt> sont générés dans un dossier temporaire propre à chaque construction, détruit à la fin même en cas d'erreur :
+     * plusieurs constructions peuvent se faire en même temps.</p>
      * <p>Les erreurs de compilation sont affichées dans la console.</p>
      *
      * @param jarFile   La jarre de stockage du résultat.
@@ -55,33 +67,153 @@ public class Java2Jar {
      */
     public static boolean compile(String jarFile, String mainClass, String javaFiles[], String dependentsJar[], boolean allErrors) {
         try {
-            String buildDir = ".build";
-            JarManager.rmDir(new File(buildDir));
-            new File(buildDir).mkdirs();
-            if (dependentsJar != null) {
-                for (String depJar : dependentsJar)
-                    JarManager.jarExtract(depJar, buildDir);
+            File cached = getCachedJar(mainClass, javaFiles, dependentsJar, allErrors);
+            if (cached != null && cached.isFile()) {
+                JarManager.copyFiles(cached.getPath(), jarFile);
+                cached.setLastModified(System.currentTimeMillis());
+                return true;
             }
-            for (int i = 0; i < javaFiles.length; i++) {
-                String file = javaFiles[i];
-                javaFiles[i] = buildDir + File.separator + file;
-                JarManager.copyFiles(file, javaFiles[i]);
+            File buildDir = createBuildDir();
+            try {
+                for (int i = 0; i < javaFiles.length; i++) {
+                    String file = javaFiles[i];
+                    javaFiles[i] = buildDir + File.separator + file;
+                    JarManager.copyFiles(file, javaFiles[i]);
+                }
+                if (!Java2Class.compile(javaFiles, allErrors, getClasspath(dependentsJar))) {
+                    return false;
+                }
+                Manifest man = new Manifest();
+                man.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+                man.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_VENDOR, "Java's Cool");
+                JarManager.jarCreate(jarFile, man, buildDir.getPath(), null, dependentsJar);
+            } finally {
+                JarManager.rmDir(buildDir);
             }
-            if (!Java2Class.compile(javaFiles, allErrors)) {
-                return false;
+            if (cached != null) {
+                putCachedJar(jarFile, cached);
             }
-            String mfFile = buildDir + File.separator + "manifest.jmf";
-            Manifest man = new Manifest();
-            man.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
-            man.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_VENDOR, "Java's Cool");
-            JarManager.jarCreate(jarFile, man, buildDir);
-            JarManager.rmDir(new File(buildDir));
             return true;
         } catch (IOException e) {
             throw new RuntimeException("Erreur d'entrées-sorties à la compilation : " + e);
         }
     }
 
+    // Crée un dossier de construction propre à cette construction, dans le dossier temporaire
+    private static File createBuildDir() throws IOException {
+        File dir = File.createTempFile("webjavac-build", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Impossible de créer le dossier de construction " + dir);
+        }
+        return dir;
+    }
+
+    // Renvoie le classpath de compilation : les jars dépendants, suivis du classpath courant
+    private static String[] getClasspath(String dependentsJar[]) {
+        if (dependentsJar == null) {
+            return null;
+        }
+        String[] classpath = System.getProperty("java.class.path", "").split(File.pathSeparator);
+        String[] path = new String[dependentsJar.length + classpath.length];
+        System.arraycopy(dependentsJar, 0, path, 0, dependentsJar.length);
+        System.arraycopy(classpath, 0, path, dependentsJar.length, classpath.length);
+        return path;
+    }
+
+    // Renvoie le fichier du cache correspondant à une construction, ou null si le cache est désactivé
+    private static File getCachedJar(String mainClass, String javaFiles[], String dependentsJar[], boolean allErrors) throws IOException {
+        String cacheDir = System.getProperty("webjavac.jarCache", System.getProperty("java.io.tmpdir") + File.separator + "webjavac-jars");
+        if (cacheDir.length() == 0) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, (mainClass + "\u0000" + allErrors + "\u0000" + Java2Class.OPTIONS).getBytes("UTF-8"));
+            for (String file : javaFiles)
+                updateFiles(digest, file, new File(file));
+            // Le classpath effectif de la compilation : le contenu des jars dépendants,
+            // et le classpath courant qui peut changer d'une version à l'autre, par la taille et la date de ses fichiers pour ne pas le relire à chaque construction
+            if (dependentsJar != null) {
+                for (String jar : dependentsJar)
+                    updateFiles(digest, jar, new File(jar));
+            }
+            for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator))
+                updateStamps(digest, entry, new File(entry));
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest())
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return new File(cacheDir, key + ".jar");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponible : " + e);
+        }
+    }
+
+    // Ajoute à l'empreinte le nom et le contenu d'un fichier, ou de chaque fichier d'un dossier, ou le seul nom si il n'existe pas
+    private static void updateFiles(MessageDigest digest, String name, File file) throws IOException {
+        update(digest, name.getBytes("UTF-8"));
+        if (file.isDirectory()) {
+            String[] children = file.list();
+            Arrays.sort(children);
+            for (String child : children)
+                if (!child.equals(".svn")) {
+                    updateFiles(digest, name + "/" + child, new File(file, child));
+                }
+        } else if (file.isFile()) {
+            byte data[] = new byte[(int) file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+            update(digest, data);
+        }
+    }
+
+    // Ajoute à l'empreinte le nom, la taille et la date d'un fichier, ou de chaque fichier d'un dossier, ou le seul nom si il n'existe pas
+    private static void updateStamps(MessageDigest digest, String name, File file) throws IOException {
+        update(digest, name.getBytes("UTF-8"));
+        if (file.isDirectory()) {
+            String[] children = file.list();
+            Arrays.sort(children);
+            for (String child : children)
+                if (!child.equals(".svn")) {
+                    updateStamps(digest, name + "/" + child, new File(file, child));
+                }
+        } else if (file.isFile()) {
+            update(digest, (file.length() + "\u0000" + file.lastModified()).getBytes("UTF-8"));
+        }
+    }
+
+    // Ajoute des octets à l'empreinte, précédés de leur nombre
+    private static void update(MessageDigest digest, byte[] data) {
+        for (int i = 0; i < 4; i++)
+            digest.update((byte) (data.length >> (8 * i)));
+        digest.update(data);
+    }
+
+    // Range un jar construit dans le cache, et retire du cache les jars les moins récemment utilisés
+    private static void putCachedJar(String jarFile, File cached) throws IOException {
+        File dir = cached.getParentFile();
+        dir.mkdirs();
+        File tmp = new File(dir, cached.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        JarManager.copyFiles(jarFile, tmp.getPath());
+        if (!tmp.renameTo(cached)) {
+            tmp.delete();
+        }
+        File[] jars = dir.listFiles();
+        int count = Integer.getInteger("webjavac.jarCacheCount", 32);
+        if (jars != null && jars.length > count) {
+            Arrays.sort(jars, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    return f1.lastModified() < f2.lastModified() ? 1 : f1.lastModified() > f2.lastModified() ? -1 : 0;
+                }
+            });
+            for (int i = count; i < jars.length; i++)
+                jars[i].delete();
+        }
+    }
+
     /**
      * Lanceur de la conversion Jvs en Java.
      *
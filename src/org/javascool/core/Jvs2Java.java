@@ -3,9 +3,10 @@
  **************************************************************/
 package org.javascool.core;
 
-import org.javascool.tools.FileManager;
-
 import java.lang.reflect.InvocationTargetException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Used to report a throwable
 
@@ -49,14 +50,95 @@ public class Jvs2Java extends Translator {
 
     private String progletPackageName = null;
 
+    /**
+     * Définit le mécanisme de résolution des directives <tt>include</tt>.
+     * <p>Par défaut, un mécanisme partagé par toutes les traductions est utilisé, de façon à ne lire qu'une fois chaque fichier inclus.</p>
+     *
+     * @param includeResolver Le mécanisme de résolution des inclusions.
+     * @return Cet objet, permettant de définir la construction <tt>Jvs2Java translator = new Jvs2Java().setIncludeResolver(..)</tt>.
+     */
+    public Jvs2Java setIncludeResolver(IncludeResolver includeResolver) {
+        // @bean-parameter(IncludeResolver, includeResolver, rw);
+        this.includeResolver = includeResolver;
+        return this;
+    }
+
+    /**
+     * Renvoie le mécanisme de résolution des directives <tt>include</tt>.
+     */
+    public IncludeResolver getIncludeResolver() {
+        return includeResolver;
+    }
+
+    private IncludeResolver includeResolver = defaultIncludeResolver;
+
+    /**
+     * Définit comment les boucles <tt>while</tt> du code Jvs peuvent être interrompues.
+     * <p>Par défaut, un <tt>sleep(1);</tt> est ajouté au début de chaque boucle, ce qui ralentit chaque tour de boucle d'au moins une milliseconde.</p>
+     * <p>En mode coopératif, c'est un appel à {@link #checkInterrupted()} qui est ajouté : il ne fait que tester si le thread a été interrompu,
+     * et la boucle s'exécute à pleine vitesse.</p>
+     *
+     * @param cooperativeCancellation La valeur true pour le mode coopératif, false pour le mode par défaut.
+     * @return Cet objet, permettant de définir la construction <tt>Jvs2Java translator = new Jvs2Java().setCooperativeCancellation(..)</tt>.
+     */
+    public Jvs2Java setCooperativeCancellation(boolean cooperativeCancellation) {
+        // @bean-parameter(boolean, cooperativeCancellation, w);
+        this.cooperativeCancellation = cooperativeCancellation;
+        return this;
+    }
+
+    private boolean cooperativeCancellation = false;
+
+    /**
+     * Arrête le programme si le thread qui l'exécute a été interrompu.
+     * <p>Cette méthode est appelée au début de chaque boucle <tt>while</tt> en mode coopératif, elle ne fait qu'un test si le thread n'est pas interrompu.</p>
+     *
+     * @throws RuntimeException Si le thread a été interrompu, avec le même message que la macro <tt>sleep</tt>.
+     * @see #setCooperativeCancellation(boolean)
+     */
+    public static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new RuntimeException("Programme arrêté !");
+        }
+    }
+
+    // Mécanisme de résolution des inclusions partagé par défaut
+    private static final IncludeResolver defaultIncludeResolver = new IncludeResolver();
+
+    /**
+     * Traduit un code Jvs en code Java standard.
+     * <p>Le nom de la classe générée peut ensuite être obtenu par {@link #getClassName()} dans le même thread.</p>
+     *
+     * @param jvsCode Le code Jvs en entrée.
+     * @return Le code Java d'une classe Runnable dont la méthode run() appelle le main() du code Jvs.
+     * @see #translateProgram(String)
+     */
     @Override
     public String translate(String jvsCode) {
+        Translation translation = translateProgram(jvsCode);
+        lastClassName.set(translation.getClassName());
+        return translation.getJavaCode();
+    }
+
+    /**
+     * Traduit un code Jvs en code Java standard.
+     * <p>La traduction se fait en un seul parcours de chaque ligne, sans expression régulière.</p>
+     * <p>Cette méthode est réentrante : plusieurs traductions peuvent avoir lieu en même temps avec le même objet,
+     * chacune reçoit un nom de classe unique.</p>
+     *
+     * @param jvsCode Le code Jvs en entrée.
+     * @return Le code Java d'une classe Runnable dont la méthode run() appelle le main() du code Jvs, et le nom de cette classe.
+     */
+    public Translation translateProgram(String jvsCode) {
         String text = jvsCode.replace((char) 160, ' ');
         // Ici on ajoute
-        if (!text.replaceAll("[ \n\r\t]+", " ").matches(".*void[ ]+main[ ]*\\([ ]*\\).*")) {
-            if (text.replaceAll("[ \n\r\t]+", " ").matches(".*main[ ]*\\([ ]*\\).*")) {
+        if (!hasMain(text, true)) {
+            int main = findMainCall(text);
+            if (hasMain(text, false)) {
                 System.out.println("Attention: il faut mettre \"void\" devant \"main()\" pour que le programme puisse se compiler");
-                text = text.replaceFirst("main[ ]*\\([ ]*\\)", "void main()");
+                if (main != -1) {
+                    text = text.substring(0, main) + "void main()" + text.substring(text.indexOf(')', main) + 1);
+                }
             } else {
                 System.out.println("Attention: il faut un block \"void main()\" pour que le programme puisse se compiler");
                 text = "\nvoid main() {\n" + text + "\n}\n";
@@ -65,36 +147,26 @@ public class Jvs2Java extends Translator {
         String[] lines = text.split("\n");
         StringBuilder head = new StringBuilder();
         StringBuilder body = new StringBuilder();
+        Set<String> included = new HashSet<String>();
+        String className;
         // Here is the translation loop
         {
-            int i = 1;
             // Copies the user's code
             for (String line : lines) {
-                if (line.matches("^\\s*(import|package)[^;]*;\\s*$")) {
+                if (isDirective(line, "import") || isDirective(line, "package")) {
                     head.append(line);
                     body.append("//").append(line).append("\n");
-                    if (line.matches("^\\s*package[^;]*;\\s*$")) {
+                    if (isDirective(line, "package")) {
                         System.out.println("Attention: on ne peut normalement pas définir de package Java en JavaScool\n le programme risque de ne pas s'exécuter correctement");
                     }
-                } else if (line.matches("^\\s*include[^;]*;\\s*$")) {
-                    String name = line.replaceAll("^\\s*include([^;]*);\\s*$", "$1").trim();
-                    body.append("/* include " + name + "; */ ");
-                    try {
-                        String include = FileManager.load(name + ".jvs");
-                        for (String iline : include.split("\n"))
-                            if (iline.matches("^\\s*import[^;]*;\\s*$")) {
-                                head.append(iline);
-                            } else if (!iline.matches("^\\s*package[^;]*;\\s*$")) {
-                                body.append(iline);
-                            }
-                    } catch (Exception e) {
-                        body.append(" - Impossible de lire correctement le fichier  inclure !!");
-                    }
+                } else if (isDirective(line, "include")) {
+                    String name = getDirectiveArgument(line, "include");
+                    body.append("/* include ").append(name).append("; */ ");
+                    includeResolver.expand(name, head, body, included);
                     body.append("\n");
                 } else {
                     body.append(line).append("\n");
                 }
-                i++;
             }
             // Imports proglet's static methods
             // TODO: Restore JVS Packages
@@ -109,36 +181,157 @@ public class Jvs2Java extends Translator {
 //                head.append(progletTranslator.getImports());
 //            }
             // Declares the proglet's core as a Runnable in the Applet
-            uid++;
-            head.append("public class JvsToJavaTranslated").append(uid).append(" implements Runnable{");
-            head.append("  private static final long serialVersionUID = ").append(uid).append("L;");
+            className = "JvsToJavaTranslated" + uid.incrementAndGet();
+            head.append("public class ").append(className).append(" implements Runnable{");
+            head.append("  private static final long serialVersionUID = 1L;");
             head.append("  public void run() {");
             head.append("   /*try{*/ main(); /*} catch(Throwable e) { ");
             head.append("    if (e.toString().matches(\".*Interrupted.*\"))System.out.println(\"\\n-------------------\\nProggramme arrêté !\\n-------------------\\n\");");
             head.append("    else System.out.println(\"\\n-------------------\\nErreur lors de l'exécution de la proglet\\n" +/*\"+org.javascool.core.Jvs2Java.report(e)+\"*/"\\n-------------------\\n\");}*/");
             head.append("}");
         }
-        String finalBody = body.toString().
-                replaceAll("(while.*\\{)", "$1 sleep(1);");
+        String finalBody = insertAfterLoops(body, cooperativeCancellation ? " org.javascool.core.Jvs2Java.checkInterrupted();" : " sleep(1);");
         if (progletTranslator != null) {
             finalBody = progletTranslator.translate(finalBody);
         }
         System.err.println(
                 "\n-------------------\nCode java généré\n-------------------\n" +
-                        head.toString().replaceAll("([{;])", "$1\n") + "\n" + finalBody + "}" +
+                        breakInstructions(head) + "\n" + finalBody + "}" +
                         "\n----------------------------------------------------------\n");
-        return head.toString() + finalBody + "}";
+        return new Translation(className, head.toString() + finalBody + "}");
+    }
+
+    // Teste si le code contient "void main()" ou "main()", séparés d'espaces, tabulations ou retours à la ligne
+    private static boolean hasMain(String text, boolean withVoid) {
+        // Une fin de ligne autre que \n ou \r empêche la reconnaissance, comme le ferait l'expression régulière ".*main().*"
+        if (text.indexOf('\u0085') != -1 || text.indexOf('\u2028') != -1 || text.indexOf('\u2029') != -1) {
+            return false;
+        }
+        for (int main = text.indexOf("main"); main != -1; main = text.indexOf("main", main + 1)) {
+            int i = skipSpaces(text, main + 4, false);
+            if (i < text.length() && text.charAt(i) == '(') {
+                i = skipSpaces(text, i + 1, false);
+                if (i < text.length() && text.charAt(i) == ')') {
+                    if (!withVoid) {
+                        return true;
+                    }
+                    int j = main;
+                    while (j > 0 && isSpace(text.charAt(j - 1), false))
+                        j--;
+                    if (j < main && text.startsWith("void", j - 4)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // Renvoie l'index du premier "main()", séparé uniquement d'espaces, ou -1 si il n'y en a pas
+    private static int findMainCall(String text) {
+        for (int main = text.indexOf("main"); main != -1; main = text.indexOf("main", main + 1)) {
+            int i = skipSpaces(text, main + 4, true);
+            if (i < text.length() && text.charAt(i) == '(') {
+                i = skipSpaces(text, i + 1, true);
+                if (i < text.length() && text.charAt(i) == ')') {
+                    return main;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Passe par dessus les espaces (uniquement ' ' si strict, sinon aussi tabulations et retours à la ligne)
+    private static int skipSpaces(String text, int offset, boolean strict) {
+        while (offset < text.length() && isSpace(text.charAt(offset), strict))
+            offset++;
+        return offset;
+    }
+
+    private static boolean isSpace(char c, boolean strict) {
+        return c == ' ' || (!strict && (c == '\n' || c == '\r' || c == '\t'));
+    }
+
+    // Passe par dessus les blancs au sens des expressions régulières (\s)
+    private static int skipBlanks(String line, int offset) {
+        for (; offset < line.length(); offset++) {
+            char c = line.charAt(offset);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f' && c != '\r') {
+                break;
+            }
+        }
+        return offset;
+    }
+
+    // Teste si une ligne est de la forme "keyword ../..;" éventuellement entourée de blancs
+    static boolean isDirective(String line, String keyword) {
+        int start = skipBlanks(line, 0);
+        if (!line.startsWith(keyword, start)) {
+            return false;
+        }
+        int end = line.indexOf(';', start + keyword.length());
+        return end != -1 && skipBlanks(line, end + 1) == line.length();
+    }
+
+    // Renvoie l'argument d'une ligne de la forme "keyword argument;"
+    static String getDirectiveArgument(String line, String keyword) {
+        int start = skipBlanks(line, 0) + keyword.length();
+        return line.substring(start, line.indexOf(';', start)).trim();
+    }
+
+    // Insère une instruction après la dernière accolade ouvrante de chaque ligne contenant un "while" suivi d'une accolade
+    private static String insertAfterLoops(CharSequence body, String instruction) {
+        StringBuilder result = new StringBuilder(body.length() + 64);
+        int start = 0, loop = -1, brace = -1;
+        for (int i = 0; i <= body.length(); i++) {
+            char c = i < body.length() ? body.charAt(i) : '\n';
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                if (brace != -1) {
+                    result.append(body, start, brace + 1).append(instruction).append(body, brace + 1, i);
+                } else {
+                    result.append(body, start, i);
+                }
+                if (i < body.length()) {
+                    result.append(c);
+                }
+                start = i + 1;
+                loop = brace = -1;
+            } else if (loop == -1) {
+                if (c == 'w' && i + 5 <= body.length() && body.charAt(i + 1) == 'h' && body.charAt(i + 2) == 'i' && body.charAt(i + 3) == 'l' && body.charAt(i + 4) == 'e') {
+                    loop = i;
+                    i += 4;
+                }
+            } else if (c == '{') {
+                brace = i;
+            }
+        }
+        return result.toString();
+    }
+
+    // Passe à la ligne après chaque '{' et ';' pour l'affichage du code généré
+    private static String breakInstructions(CharSequence code) {
+        StringBuilder result = new StringBuilder(code.length() + code.length() / 8);
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            result.append(c);
+            if (c == '{' || c == ';') {
+                result.append('\n');
+            }
+        }
+        return result.toString();
     }
 
     /**
-     * Renvoie le nom de la dernière classe Java générée lors de la traduction.
+     * Renvoie le nom de la dernière classe Java générée lors de la traduction par {@link #translate(String)} dans ce thread.
      */
     public String getClassName() {
-        return "JvsToJavaTranslated" + uid;
+        return lastClassName.get();
     }
 
-    // Counter used to increment the serialVersionUID in order to reload the different versions of the class
-    private static int uid = 0;
+    private final ThreadLocal<String> lastClassName = new ThreadLocal<String>();
+
+    // Counter used to name the generated classes in order to reload the different versions of the class
+    private static final AtomicInteger uid = new AtomicInteger();
 
     /**
      * Rapporte une erreur survenue lors de l'exécution d'un prograamme Jvs.
@@ -0,0 +1,34 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+/**
+ * Décrit le résultat de la traduction d'un code Jvs en code Java standard.
+ *
+ * @serial exclude
+ * @see Jvs2Java#translateProgram(String)
+ * @see <a href="Translation.java.html">code source</a>
+ */
+public class Translation {
+    Translation(String className, String javaCode) {
+        this.className = className;
+        this.javaCode = javaCode;
+    }
+
+    private final String className, javaCode;
+
+    /**
+     * Renvoie le nom de la classe Java générée, unique pour chaque traduction.
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Renvoie le code Java généré.
+     */
+    public String getJavaCode() {
+        return javaCode;
+    }
+}
@@ -57,38 +57,7 @@ public class Translator {
      * @see #scanSpaces(String, int)
      */
     public static int[] scanConstruct(String string, int offset, String start, String stop, String escape, boolean recurse, boolean code) {
-        int index[] = {-1, offset};
-        if ((0 <= offset) && (offset < string.length()) && (stop != null)) {
-            index[0] = code ? scanComments(string, offset, false) : scanSpaces(string, offset);
-            if (!((index[0] < string.length()) && ((start == null) || string.startsWith(start, index[0])))) {
-                return new int[]{-1, offset};
-            }
-            for (index[1] = index[0] + (start == null ? 0 : start.length()); index[1] < string.length() && !string.startsWith(stop, index[1]); ) {
-                if ((escape != null && escape.length() > 0) && string.startsWith(escape, index[1])) {
-                    index[1] += escape.length();
-                } else if (recurse && (start != null && index[1] > index[0]) && string.startsWith(start, index[1])) {
-                    int next[] = scanConstruct(string, index[1], start, stop, escape, recurse, code);
-                    if (next[0] == -1) {
-                        return new int[]{-1, offset};
-                    } else {
-                        index[1] = next[1];
-                    }
-                } else if (code) {
-                    index[1] = scanComments(string, index[1], true);
-                } else {
-                    index[1]++;
-                }
-            }
-            if ((index[1] < string.length()) && string.startsWith(stop, index[1])) {
-                index[1] += stop.length();
-            } else {
-                return new int[]{-1, offset};
-            }
-        } else {
-            return new int[]{-1, offset};
-        }
-        // -System.err.println(("In: "+string.substring(offset, Math.min(string.length(), offset+16))+"..\t< offset='"+offset+"' start='"+start+"' stop='"+stop+"' index='"+index[0]+", "+index[1]+"'\tstring='"+string.substring(index[0], index[1])+"' />").replace('\n', ' '));
-        return index;
+        return new Scanner(string).scanConstruct(offset, start, stop, escape, recurse, code);
     }
 
     /**
@@ -119,16 +88,7 @@ public class Translator {
      * @return L'index qui suit le texte éliminé, donc la valeur de l'offset (ou offset plus un si incémente) si il n'y en a pas.
      */
     public static int scanComments(String string, int offset, boolean next) {
-        int offset0 = offset;
-        for (boolean loop = true; loop; ) {
-            int offset1 = offset;
-            offset = scanSpaces(string, offset);
-            offset = scanConstruct(string, offset, "/*", "*/", null, false, false)[1];
-            offset = scanConstruct(string, offset, "//", "\n", null, false, false)[1];
-            offset = scanConstruct(string, offset, "\"", "\"", "\\\"", false, false)[1];
-            loop = offset > offset1;
-        }
-        return next && offset == offset0 ? offset + 1 : offset;
+        return new Scanner(string).scanComments(offset, next);
     }
 
     /**
@@ -142,4 +102,124 @@ public class Translator {
         for (; offset < string.length() && Character.isWhitespace(string.charAt(offset)); offset++) ;
         return offset;
     }
+
+    /**
+     * Implémente les utilitaires de scan de code en un seul parcours linéaire du texte.
+     * <p>Les parenthésages emboîtés sont gérés par une pile explicite plutôt que par récursion, ce qui évite tout débordement de la pile d'exécution.</p>
+     * <p>Les recherches de fin de commentaire, de fin de ligne et de fin de chaîne sont mémorisées :
+     * une construction non terminée n'est donc parcourue qu'une fois, et non à chaque caractère qui la précède.</p>
+     */
+    private static class Scanner {
+        private final String string;
+        private final int length;
+        // Mémorisation des recherches : {index de départ, index trouvé ou -1}
+        private final int[] commentEnd = {Integer.MAX_VALUE, -1}, lineEnd = {Integer.MAX_VALUE, -1}, quote = {Integer.MAX_VALUE, -1};
+
+        private Scanner(String string) {
+            this.string = string;
+            this.length = string.length();
+        }
+
+        private int[] scanConstruct(int offset, String start, String stop, String escape, boolean recurse, boolean code) {
+            if (!((0 <= offset) && (offset < length) && (stop != null))) {
+                return new int[]{-1, offset};
+            }
+            boolean escapes = escape != null && escape.length() > 0;
+            int first = code ? scanComments(offset, false) : scanSpaces(string, offset);
+            if (!((first < length) && ((start == null) || string.startsWith(start, first)))) {
+                return new int[]{-1, offset};
+            }
+            // Pile des débuts des parenthésages emboîtés en cours
+            int[] starts = new int[16];
+            int depth = 0;
+            starts[depth++] = first;
+            for (int index = first + (start == null ? 0 : start.length()); ; ) {
+                if (index < length && !string.startsWith(stop, index)) {
+                    if (escapes && string.startsWith(escape, index)) {
+                        index += escape.length();
+                    } else if (recurse && (start != null && index > starts[depth - 1]) && string.startsWith(start, index)) {
+                        int next = code ? scanComments(index, false) : scanSpaces(string, index);
+                        if (!((next < length) && string.startsWith(start, next))) {
+                            return new int[]{-1, offset};
+                        }
+                        if (depth == starts.length) {
+                            int[] grown = new int[2 * depth];
+                            System.arraycopy(starts, 0, grown, 0, depth);
+                            starts = grown;
+                        }
+                        starts[depth++] = next;
+                        index = next + start.length();
+                    } else if (code) {
+                        index = scanComments(index, true);
+                    } else {
+                        index++;
+                    }
+                } else if (index < length) {
+                    index += stop.length();
+                    if (--depth == 0) {
+                        return new int[]{first, index};
+                    }
+                } else {
+                    return new int[]{-1, offset};
+                }
+            }
+        }
+
+        private int scanComments(int offset, boolean next) {
+            int offset0 = offset;
+            for (boolean loop = true; loop; ) {
+                int offset1 = offset;
+                offset = scanSpaces(string, offset);
+                // Commentaire /* .. */
+                if (offset < length && string.startsWith("/*", offset)) {
+                    int end = find(commentEnd, offset + 2);
+                    if (end != -1) {
+                        offset = end + 2;
+                    }
+                }
+                // Commentaire // .. \n
+                if (offset < length) {
+                    int index = scanSpaces(string, offset);
+                    if (string.startsWith("//", index)) {
+                        int end = find(lineEnd, index + 2);
+                        if (end != -1) {
+                            offset = end + 1;
+                        }
+                    }
+                }
+                // Chaîne " .. " avec \" comme échappement
+                if (offset < length) {
+                    int index = scanSpaces(string, offset);
+                    if (index < length && string.charAt(index) == '"') {
+                        int end = index + 1 < length && string.charAt(index + 1) == '"' ? index + 1 : find(quote, index + 2);
+                        if (end != -1 && end < length) {
+                            offset = end + 1;
+                        }
+                    }
+                }
+                loop = offset > offset1;
+            }
+            return next && offset == offset0 ? offset + 1 : offset;
+        }
+
+        // Renvoie le premier index à partir de offset qui correspond à une recherche, en réutilisant la précédente recherche si possible
+        private int find(int[] memo, int offset) {
+            if (memo[0] <= offset && (memo[1] == -1 || offset <= memo[1])) {
+                return memo[1];
+            }
+            int found;
+            if (memo == commentEnd) {
+                found = string.indexOf("*/", offset);
+            } else if (memo == lineEnd) {
+                found = string.indexOf('\n', offset);
+            } else {
+                // Un guillemet qui n'est pas précédé de \\
+                for (found = string.indexOf('"', offset); found != -1 && string.charAt(found - 1) == '\\'; found = string.indexOf('"', found + 1))
+                    ;
+            }
+            memo[0] = offset;
+            memo[1] = found;
+            return found;
+        }
+    }
 }
@@ -0,0 +1,387 @@
+/**************************************************************
+ * Philippe VIENNE, Copyright (C) 2011.  All rights reserved. *
+ **************************************************************/
+package org.javascool.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exécute les programmes compilés dans des processus séparés, démarrés à l'avance.
+ * <p>Chaque programme est exécuté par un processus {@link ExecutionWorker}, qui reçoit son bytecode par un tube :
+ * un programme qui plante ou épuise la mémoire n'affecte que son processus, sans payer le démarrage d'une machine virtuelle à chaque exécution.
+ * Un processus est remplacé après <tt>maxRuns</tt> exécutions, après un plantage, si un programme y a laissé des threads vivants,
+ * ou si il ne répond pas dans le temps maximal d'exécution plus 5 s ; le remplaçant est démarré en arrière plan,
+ * et un démarrage qui échoue est réessayé après un délai qui double à chaque échec, de 1 s à 1 min.</p>
+ * <p>L'isolation n'est qu'une isolation des plantages : les processus n'ont pas de gestionnaire de sécurité,
+ * et un programme y a les mêmes accès au système de fichiers et au réseau que le serveur. Avec <tt>maxRuns</tt> supérieur à 1,
+ * un programme peut aussi laisser des fichiers ou un état statique des bibliothèques au programme suivant du même processus.</p>
+ * <p>Les processus reprennent le classpath et les budgets <tt>webjavac.*</tt> de la machine virtuelle courante.
+ * La réserve par défaut est configurée par les propriétés système <tt>webjavac.workers</tt> (par défaut le nombre de processeurs),
+ * <tt>webjavac.workerRuns</tt> (par défaut 1, un processus par exécution) et <tt>webjavac.workerOptions</tt> (des options de la machine virtuelle séparées par des espaces,
+ * par exemple <tt>-Xmx256m -XX:SharedArchiveFile=webjavac.jsa</tt>).</p>
+ *
+ * @serial exclude
+ * @see <a href="WorkerPool.java.html">code source</a>
+ */
+public class WorkerPool {
+    /**
+     * Crée une réserve de processus d'exécution, et démarre ses processus en arrière plan.
+     *
+     * @param size       Le nombre de processus.
+     * @param maxRuns    Le nombre d'exécutions après lequel un processus est remplacé.
+     * @param jvmOptions Les options de la machine virtuelle des processus, ou null si il n'y en a pas.
+     */
+    public WorkerPool(int size, int maxRuns, String[] jvmOptions) {
+        this.maxRuns = Math.max(1, maxRuns);
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        if (jvmOptions != null) {
+            for (String option : jvmOptions)
+                if (option.length() > 0) {
+                    command.add(option);
+                }
+        }
+        for (String name : System.getProperties().stringPropertyNames())
+            if (name.startsWith("webjavac.")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ExecutionWorker.class.getName());
+        long maxWallTime = ExecutionSupervisor.getHeadless().getMaxWallTime();
+        timeout = maxWallTime > 0 ? maxWallTime + 5000 : 0;
+        for (int i = 0; i < size; i++)
+            replace();
+    }
+
+    private final int maxRuns;
+    private final long timeout;
+    private final List<String> command = new ArrayList<String>();
+    private final BlockingQueue<Worker> idles = new LinkedBlockingQueue<Worker>();
+    private final ExecutorService starter = Executors.newSingleThreadExecutor(daemon("JVSWorkerStarter"));
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(daemon("JVSWorkerWatchdog"));
+    private final AtomicLong started = new AtomicLong(), recycled = new AtomicLong(), crashed = new AtomicLong(), runs = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * Renvoie la réserve par défaut, configurée par les propriétés système, créée au premier appel.
+     */
+    public static WorkerPool getDefault() {
+        synchronized (WorkerPool.class) {
+            if (defaultPool == null) {
+                defaultPool = new WorkerPool(Integer.getInteger("webjavac.workers", Runtime.getRuntime().availableProcessors()),
+                        Integer.getInteger("webjavac.workerRuns", 1), System.getProperty("webjavac.workerOptions", "").trim().split(" +"));
+            }
+            return defaultPool;
+        }
+    }
+
+    private static WorkerPool defaultPool = null;
+
+    /**
+     * Décrit le résultat d'une exécution dans un processus séparé.
+     */
+    public static class Result {
+        private String output = "", error = "", exceeded = null;
+        private long dropped = 0, cpuTime = -1, wallTime = 0, allocatedBytes = -1;
+        private boolean crashed = false;
+
+        /**
+         * Renvoie la sortie du programme.
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * Renvoie le nombre d'octets de sortie perdus au delà de la limite.
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Renvoie le message d'erreur de l'exécution, ou la chaîne vide si elle s'est terminée normalement.
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Renvoie le budget dépassé : <tt>"cpuTime"</tt>, <tt>"wallTime"</tt> ou <tt>"allocatedBytes"</tt>, ou null si le budget a été respecté.
+         */
+        public String getExceeded() {
+            return exceeded;
+        }
+
+        /**
+         * Renvoie le temps de calcul, en millisecondes, ou -1 si il n'est pas mesuré.
+         */
+        public long getCpuTime() {
+            return cpuTime;
+        }
+
+        /**
+         * Renvoie le temps écoulé, en millisecondes.
+         */
+        public long getWallTime() {
+            return wallTime;
+        }
+
+        /**
+         * Renvoie la mémoire allouée, en octets, ou -1 si elle n'est pas mesurée.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * Renvoie true si le processus s'est arrêté ou a été arrêté pendant l'exécution.
+         */
+        public boolean isCrashed() {
+            return crashed;
+        }
+    }
+
+    /**
+     * Exécute un programme compilé dans un des processus, et attend sa fin.
+     *
+     * @param compilation Le résultat d'une compilation réussie.
+     * @return Le résultat de l'exécution.
+     * @throws IllegalStateException Si aucun processus n'est disponible au bout de 30 s, ou si la réserve est fermée.
+     */
+    public Result run(Compilation compilation) throws InterruptedException {
+        final Worker worker = idles.poll(30, TimeUnit.SECONDS);
+        if (worker == null || closed) {
+            if (worker != null) {
+                worker.stop();
+            }
+            throw new IllegalStateException(closed ? "Réserve de processus d'exécution fermée" : "Aucun processus d'exécution disponible");
+        }
+        runs.incrementAndGet();
+        final AtomicBoolean killed = new AtomicBoolean();
+        ScheduledFuture<?> kill = timeout <= 0 ? null : watchdog.schedule(new Runnable() {
+            public void run() {
+                killed.set(true);
+                worker.process.destroy();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        Result result = new Result();
+        boolean healthy = false, leftovers = true;
+        try {
+            worker.out.writeUTF(compilation.getClassName());
+            worker.out.writeInt(compilation.getClasses().size());
+            for (Map.Entry<String, byte[]> bytecode : compilation.getClasses().entrySet()) {
+                worker.out.writeUTF(bytecode.getKey());
+                worker.out.writeInt(bytecode.getValue().length);
+                worker.out.write(bytecode.getValue());
+            }
+            worker.out.flush();
+            byte[] output = new byte[worker.in.readInt()];
+            worker.in.readFully(output);
+            result.output = new String(output, "UTF-8");
+            result.dropped = worker.in.readLong();
+            result.error = worker.in.readUTF();
+            result.exceeded = worker.in.readUTF();
+            if (result.exceeded.length() == 0) {
+                result.exceeded = null;
+            }
+            result.cpuTime = worker.in.readLong();
+            result.wallTime = worker.in.readLong();
+            result.allocatedBytes = worker.in.readLong();
+            leftovers = worker.in.readBoolean();
+            healthy = true;
+        } catch (IOException e) {
+            crashed.incrementAndGet();
+            result.crashed = true;
+            if (killed.get()) {
+                result.exceeded = "wallTime";
+                result.error = "Programme arrêté : temps d'exécution dépassé";
+            } else {
+                result.error = "Processus d'exécution arrêté : " + e;
+            }
+        } finally {
+            if (kill != null) {
+                kill.cancel(false);
+            }
+            if (healthy && !leftovers && !killed.get() && ++worker.runs < maxRuns && !closed) {
+                idles.offer(worker);
+            } else {
+                if (healthy) {
+                    recycled.incrementAndGet();
+                }
+                worker.stop();
+                replace();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Renvoie le nombre de processus démarrés depuis la création de la réserve.
+     */
+    public long getStarted() {
+        return started.get();
+    }
+
+    /**
+     * Renvoie le nombre de processus remplacés après leur nombre maximal d'exécutions, ou parce qu'un programme y a laissé des threads vivants.
+     */
+    public long getRecycled() {
+        return recycled.get();
+    }
+
+    /**
+     * Renvoie le nombre d'exécutions dont le processus s'est arrêté ou a été arrêté.
+     */
+    public long getCrashed() {
+        return crashed.get();
+    }
+
+    /**
+     * Renvoie le nombre d'exécutions depuis la création de la réserve.
+     */
+    public long getRuns() {
+        return runs.get();
+    }
+
+    /**
+     * Renvoie le nombre de processus prêts, en attente d'un programme.
+     */
+    public int getIdle() {
+        return idles.size();
+    }
+
+    /**
+     * Ferme la réserve : les processus en attente sont arrêtés, ceux qui exécutent un programme le sont à sa fin.
+     */
+    public void close() {
+        closed = true;
+        starter.shutdownNow();
+        watchdog.shutdown();
+        for (Worker worker; (worker = idles.poll()) != null; )
+            worker.stop();
+    }
+
+    // Démarre un processus en arrière plan, qui rejoint la réserve quand il est prêt
+    private void replace() {
+        replace(0);
+    }
+
+    // Démarre un processus, en réessayant après un délai doublé à chaque échec
+    private void replace(final long delay) {
+        if (closed) {
+            return;
+        }
+        try {
+            starter.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Worker worker = new Worker();
+                        if (closed) {
+                            worker.stop();
+                        } else {
+                            idles.offer(worker);
+                        }
+                    } catch (IOException e) {
+                        final long retry = Math.min(MAX_RETRY_DELAY, Math.max(MIN_RETRY_DELAY, 2 * delay));
+                        System.err.println("Impossible de démarrer un processus d'exécution : " + e + ", nouvel essai dans " + retry + " ms");
+                        if (!closed) {
+                            try {
+                                watchdog.schedule(new Runnable() {
+                                    public void run() {
+                                        replace(retry);
+                                    }
+                                }, retry, TimeUnit.MILLISECONDS);
+                            } catch (RejectedExecutionException f) {
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+        }
+    }
+
+    // Délais entre deux essais de démarrage d'un processus, en millisecondes
+    private static final long MIN_RETRY_DELAY = 1000, MAX_RETRY_DELAY = 60000;
+
+    // Un processus d'exécution, prêt quand il est construit
+    private class Worker {
+        private final Process process;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private int runs = 0;
+
+        private Worker() throws IOException {
+            process = new ProcessBuilder(command).start();
+            started.incrementAndGet();
+            forward(process.getErrorStream());
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            try {
+                if (in.readInt() != READY) {
+                    throw new IOException("Processus d'exécution invalide");
+                }
+            } catch (IOException e) {
+                process.destroy();
+                throw e;
+            }
+        }
+
+        // Ferme l'entrée du processus, ce qui l'arrête, et le détruit si il ne s'est pas arrêté
+        private void stop() {
+            try {
+                out.close();
+            } catch (IOException e) {
+            }
+            process.destroy();
+        }
+    }
+
+    // Recopie les messages de la machine virtuelle d'un processus sur la sortie d'erreur
+    private static void forward(final InputStream err) {
+        daemon("JVSWorkerErr").newThread(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    for (int n; (n = err.read(buffer)) != -1; )
+                        System.err.write(buffer, 0, n);
+                } catch (IOException e) {
+                }
+            }
+        }).start();
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return ConsoleMultiplexer.withoutContext(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Premier entier écrit par un processus, quand il est prêt
+    static final int READY = 0x4A565331;
+}
@@ -0,0 +1,374 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.webjavac;
+
+import org.javascool.core.Compilation;
+import org.javascool.core.CompilationCache;
+import org.javascool.core.CompileDiagnostic;
+import org.javascool.core.CompileSession;
+import org.javascool.core.ExecutionEngine;
+import org.javascool.core.Java2Class;
+import org.javascool.core.Jvs2Java;
+import org.javascool.core.Translation;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The compile pipeline of WebJavac, independent of the applet.
+ * <p>It translates and compiles JVS codes in memory, through a compilation cache and editor sessions, and describes the results as JSon,
+ * it is used by the {@link Gateway} applet and the headless {@link Server}.</p>
+ *
+ * @author Philippe VIENNE
+ */
+public class CompileService {
+
+    /**
+     * Compile an JVS Code, independently of any editor session.
+     * <p>Each call registers its own compiled class, which stays available until it is given to {@link #release(String)} ;
+     * beyond <tt>webjavac.maxPrograms</tt> (by default 1000) classes, the least recently used ones are released.</p>
+     *
+     * @param code What have we to compile
+     * @return A compilation's JSon describer :
+     *         {success:true,compiledClass:"name of the compiled class",diagnostics:[{file:"..",line:1,column:1,code:"compiler.err..",message:".."}, ..],console:".."}
+     */
+    public JSONObject compile(String code) {
+        JSONArray codes = new JSONArray();
+        Json.add(codes, code);
+        JSONObject r = (JSONObject) compileBatch(codes).get(0);
+        r.remove("classes");
+        return r;
+    }
+
+    /**
+     * Compile an JVS Code being edited, incrementally.
+     * <p>Each editor session keeps its last compilation: if the code only changed in comments or layout, this compilation is reused without calling javac.</p>
+     *
+     * @param session The editor session identifier
+     * @param code    What have we to compile
+     * @return A compilation's JSon describer, as for {@link #compile(String)}, with also :
+     *         {session:"..",reused:false,changedMembers:["void main()", ..]}, or null if the code has been given to the call in progress
+     */
+    public JSONObject compileIncremental(String session, String code) {
+        CompileSession compileSession = sessions.get(session);
+        if (compileSession == null) {
+            CompileSession created = newSession();
+            compileSession = sessions.putIfAbsent(session, created);
+            if (compileSession == null) {
+                compileSession = created;
+            }
+        }
+        CompileSession.Update update = compileSession.compile(code);
+        if (update == null) {
+            return null;
+        }
+        JSONObject r = toJSON(update.getCompilation());
+        Json.put(r, "session", session);
+        Json.put(r, "reused", update.isReused());
+        JSONArray changedMembers = new JSONArray();
+        Json.addAll(changedMembers, update.getChangedMembers());
+        Json.put(r, "changedMembers", changedMembers);
+        return r;
+    }
+
+    /**
+     * Forget the state of an editor session, and release its last compiled class.
+     *
+     * @param session The editor session identifier
+     */
+    public void closeSession(String session) {
+        CompileSession compileSession = sessions.remove(session);
+        if (compileSession != null) {
+            compileSession.close();
+        }
+    }
+
+    // Creates a compilation session against the jar
+    private CompileSession newSession() {
+        String[] path = new String[1];
+        path[0] = jar();
+        return new CompileSession(translator, compilationCache, false, path);
+    }
+
+    /**
+     * Compile many JVS codes, as independent programs, in one compiler invocation.
+     * <p>Codes already compiled are taken from the compilation cache, the other ones are compiled together.</p>
+     * <p>The compiled classes stay available until they are given to {@link #release(String)}, as for {@link #compile(String)}.</p>
+     *
+     * @param codes The JVS codes to compile
+     * @return A JSon array of compilation's describers, in the order of the codes :
+     *         [{success:true,compiledClass:"name of the compiled class",classes:["class names"],diagnostics:[..],console:"compilation errors"}, ..]
+     */
+    public JSONArray compileBatch(List<?> codes) {
+        String[] path = new String[1];
+        path[0] = jar();
+        String[] classNames = new String[codes.size()], keys = new String[codes.size()];
+        Map<String, String> javaSources = new LinkedHashMap<String, String>();
+        Map<String, Compilation> compilations = new HashMap<String, Compilation>();
+        for (int i = 0; i < codes.size(); i++) {
+            Translation translation = translator.translateProgram((String) codes.get(i));
+            String javaCode = translation.getJavaCode();
+            classNames[i] = translation.getClassName();
+            keys[i] = CompilationCache.key(classNames[i], javaCode, false, path);
+            Compilation compilation = compilationCache.get(keys[i]);
+            if (compilation == null) {
+                javaSources.put(classNames[i], javaCode);
+            } else {
+                Java2Class.register(compilation);
+                compilations.put(classNames[i], compilation);
+            }
+        }
+        if (!javaSources.isEmpty()) {
+            compilations.putAll(Java2Class.compileBatch(javaSources, false, path));
+        }
+        JSONArray r = new JSONArray();
+        for (int i = 0; i < classNames.length; i++) {
+            Compilation compilation = compilations.get(classNames[i]);
+            if (javaSources.containsKey(classNames[i])) {
+                compilationCache.put(keys[i], compilation);
+            }
+            if (compilation.isSuccess()) {
+                own(compilation.getClassName());
+            }
+            JSONObject c = toJSON(compilation);
+            JSONArray classes = new JSONArray();
+            Json.addAll(classes, compilation.getClasses().keySet());
+            Json.put(c, "classes", classes);
+            Json.add(r, c);
+        }
+        return r;
+    }
+
+    // Converts a compilation to a JSon describer
+    private static JSONObject toJSON(Compilation compilation) {
+        JSONObject r = new JSONObject();
+        Json.put(r, "success", compilation.isSuccess());
+        Json.put(r, "compiledClass", compilation.getClassName());
+        Json.put(r, "diagnostics", toJSON(compilation.getDiagnostics()));
+        Json.put(r, "console", compilation.getConsole());
+        return r;
+    }
+
+    // Converts compilation errors to a JSon array
+    private static JSONArray toJSON(List<CompileDiagnostic> diagnostics) {
+        JSONArray r = new JSONArray();
+        for (CompileDiagnostic diagnostic : diagnostics) {
+            JSONObject d = new JSONObject();
+            Json.put(d, "file", diagnostic.getFile());
+            Json.put(d, "line", diagnostic.getLine());
+            Json.put(d, "column", diagnostic.getColumn());
+            Json.put(d, "code", diagnostic.getCode());
+            Json.put(d, "message", diagnostic.getMessage());
+            Json.add(r, d);
+        }
+        return r;
+    }
+
+    /**
+     * Release a class compiled by {@link #compile(String)} or {@link #compileBatch(List)}, it can not be executed anymore.
+     * <p>Its bytecode is forgotten, and the loaded classes are unloaded as soon as no program uses them.</p>
+     *
+     * @param className The name of the compiled class
+     * @throws IllegalArgumentException If the class has not been compiled by this service, or is already released
+     */
+    public void release(String className) {
+        synchronized (programs) {
+            Integer count = programs.remove(className);
+            if (count == null) {
+                throw new IllegalArgumentException("Unknown compiled class " + className);
+            }
+            if (count > 1) {
+                programs.put(className, count - 1);
+            }
+        }
+        Java2Class.release(className);
+    }
+
+    /**
+     * Return a compilation of this service which can be executed.
+     * <p>Only the classes compiled by this service and not yet released are returned : a class compiled by {@link #compile(String)} or
+     * {@link #compileBatch(List)}, or the last class of an editor session.</p>
+     *
+     * @param className The name of the compiled class
+     * @return The compilation, or null if the class is unknown to this service
+     */
+    public Compilation getCompilation(String className) {
+        synchronized (programs) {
+            if (programs.get(className) != null) {
+                return Java2Class.getCompilation(className);
+            }
+        }
+        for (CompileSession session : sessions.values()) {
+            Compilation compilation = session.getCompilation();
+            if (compilation != null && compilation.isSuccess() && compilation.getClassName().equals(className)) {
+                return compilation;
+            }
+        }
+        return null;
+    }
+
+    // Records a class compiled out of any session, the least recently used classes are released beyond the webjavac.maxPrograms bound
+    private void own(String className) {
+        List<String> evicted = new ArrayList<String>();
+        synchronized (programs) {
+            Integer count = programs.get(className);
+            programs.put(className, count == null ? 1 : count + 1);
+            for (Iterator<Map.Entry<String, Integer>> i = programs.entrySet().iterator(); programs.size() > maxPrograms && i.hasNext(); ) {
+                Map.Entry<String, Integer> eldest = i.next();
+                for (int n = 0; n < eldest.getValue(); n++)
+                    evicted.add(eldest.getKey());
+                i.remove();
+            }
+        }
+        for (String name : evicted)
+            Java2Class.release(name);
+    }
+
+    // The classes compiled out of any session and not yet released, with their number of registrations, in least recently used order
+    private final Map<String, Integer> programs = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+    private final int maxPrograms = Math.max(1, Integer.getInteger("webjavac.maxPrograms", 1000));
+
+    /**
+     * Return the execution engine statistics.
+     *
+     * @return A JSon describer : {threads:4,virtual:false,active:0,queued:0,completed:0,rejected:0,totalQueueWait:0,totalRunTime:0}, times are in milliseconds
+     */
+    public JSONObject getExecutionStats() {
+        ExecutionEngine engine = ExecutionEngine.getDefault();
+        JSONObject r = new JSONObject();
+        Json.put(r, "threads", engine.getThreads());
+        Json.put(r, "virtual", engine.isVirtual());
+        Json.put(r, "active", engine.getActive());
+        Json.put(r, "queued", engine.getQueued());
+        Json.put(r, "completed", engine.getCompleted());
+        Json.put(r, "rejected", engine.getRejected());
+        Json.put(r, "totalQueueWait", engine.getTotalQueueWait());
+        Json.put(r, "totalRunTime", engine.getTotalRunTime());
+        return r;
+    }
+
+    /**
+     * Return the statistics of the loaded programs.
+     *
+     * @return A JSon describer : {registered:0,liveLoaders:0,liveClasses:0,createdLoaders:0,metaspaceUsed:0},
+     *         registered is the number of compiled classes which can be executed, metaspaceUsed is in bytes or -1 if unknown
+     */
+    public JSONObject getProgramStats() {
+        JSONObject r = new JSONObject();
+        Json.put(r, "registered", Java2Class.getRegisteredCount());
+        Json.put(r, "liveLoaders", Java2Class.getLiveLoaders());
+        Json.put(r, "liveClasses", Java2Class.getLiveClasses());
+        Json.put(r, "createdLoaders", Java2Class.getCreatedLoaders());
+        Json.put(r, "metaspaceUsed", Java2Class.getMetaspaceUsed());
+        return r;
+    }
+
+    /**
+     * Return the compilation cache statistics.
+     *
+     * @return A JSon describer : {hits:0,misses:0,count:0,size:0,maxSize:0}, sizes are in bytes
+     */
+    public JSONObject getCompilationCacheStats() {
+        JSONObject r = new JSONObject();
+        Json.put(r, "hits", compilationCache.getHits());
+        Json.put(r, "misses", compilationCache.getMisses());
+        Json.put(r, "count", compilationCache.getCount());
+        Json.put(r, "size", compilationCache.getSize());
+        Json.put(r, "maxSize", compilationCache.getMaxSize());
+        return r;
+    }
+
+    /**
+     * Set the memory ceiling of the compilation cache.
+     *
+     * @param maxSize The maximal estimated size in bytes, 0 to disable the cache
+     */
+    public void setCompilationCacheSize(long maxSize) {
+        compilationCache.setMaxSize(maxSize);
+    }
+
+    // Compilation cache, its size is given in bytes by the webjavac.compilationCacheSize property
+    private final CompilationCache compilationCache = new CompilationCache(Long.getLong("webjavac.compilationCacheSize", 32L * 1024 * 1024));
+
+    // Incremental compilation state, per editor session
+    private final ConcurrentMap<String, CompileSession> sessions = new ConcurrentHashMap<String, CompileSession>();
+
+    // The Jvs2Java translator, shared by all compilations as it is reentrant, loops are interrupted with a cooperative check unless webjavac.cooperativeCancellation is false
+    private final Jvs2Java translator = new Jvs2Java().setCooperativeCancellation(!"false".equals(System.getProperty("webjavac.cooperativeCancellation")));
+
+    /**
+     * Retrouve le chemin du jar courant.
+     *
+     * @return Le chemin du jar
+     * @throws RuntimeException lorsque l'application n'a pas été démarré depuis un jar
+     */
+    public static String jar() {
+        if (javascoolJar != null) {
+            return javascoolJar;
+        }
+        String url = CompileService.class.getResource("").toString().replaceFirst("jar:file:([^!]*)!.*", "$1");
+        System.err.println("Notice: javascool url is " + url);
+        if (url.endsWith(".jar")) {
+            try {
+                String jar = URLDecoder.decode(url, "UTF-8");
+                if (new File(jar).exists()) {
+                    return javascoolJar = jar;
+                }
+                // Ici on essaye tous les encodages possibles pour essayer de détecter javascool
+                {
+                    jar = URLDecoder.decode(url, Charset.defaultCharset().name());
+                    if (new File(jar).exists()) {
+                        javascoolJarEnc = Charset.defaultCharset().name();
+                        return jar;
+                    }
+                    for (String enc : Charset.availableCharsets().keySet()) {
+                        jar = URLDecoder.decode(url, enc);
+                        if (new File(jar).exists()) {
+                            javascoolJarEnc = enc;
+                            System.err.println("Notice: javascool file " + jar + " correct decoding as " + enc);
+                            return javascoolJar = jar;
+                        } else {
+                            System.err.println("Notice: javascool file " + jar + " wrong decoding as " + enc);
+                        }
+                    }
+                    throw new RuntimeException("Il y a un bug d'encoding sur cette plate forme");
+                }
+            } catch (UnsupportedEncodingException ex) {
+                throw new RuntimeException("Spurious defaultCharset: this is a caveat");
+            }
+        } else {
+            return "";
+        }
+        // throw new RuntimeException("Java's cool n'a pas été démarré depuis un Jar");
+    }
+
+    private static String javascoolJar = null, javascoolJarEnc = null;
+}
@@ -18,18 +18,24 @@
 
 package org.javascool.webjavac;
 
-import org.javascool.core.Java2Class;
-import org.javascool.core.Jvs2Java;
+import org.javascool.core.ConsoleMultiplexer;
+import org.javascool.core.ConsoleSink;
+import org.javascool.core.Execution;
+import org.javascool.core.ExecutionEngine;
+import org.javascool.core.ExecutionSupervisor;
 import org.javascool.tools.FileManager;
 import org.javascool.tools.JavaGate;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
-import java.io.File;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.nio.charset.Charset;
-import java.security.AccessController;
+import java.io.PrintStream;
 import java.security.PrivilegedAction;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * JS-Java Gate for WebJavac.
@@ -38,12 +44,66 @@ import java.security.PrivilegedAction;
  */
 public class Gateway extends JavaGate {
 
+    /**
+     * Start the gateway, and route the console output to JS in batched chunks.
+     * <p>The output of each program started by {@link #execInPrivateThread(String)}, on <tt>System.out</tt> or <tt>System.err</tt>,
+     * goes through its own bounded console, so concurrent programs do not share a console.
+     * The other output of <tt>System.out</tt> goes through the gateway console. Consoles are sent as <tt>java.System.out</tt> events.</p>
+     *
+     * @see ConsoleSink
+     * @see ConsoleMultiplexer
+     */
+    @Override
+    public void init() {
+        super.init();
+        if (jsGate != null) {
+            // Replaces the per character redirection of the system output controller
+            systemOutputController.stopListening();
+            originalOut = System.out;
+            originalErr = System.err;
+            defaultConsole = newConsole();
+            System.setOut(new ConsoleMultiplexer(ProgramExecution.toPrintStream(defaultConsole)));
+            System.setErr(new ConsoleMultiplexer(originalErr));
+        }
+    }
+
+    /**
+     * Stop the gateway, and give back the console output.
+     */
+    @Override
+    public void stop() {
+        if (originalOut != null) {
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+            originalOut = originalErr = null;
+            defaultConsole.close();
+        } else {
+            super.stop();
+        }
+    }
+
+    // Creates a console sending its chunks to JS, a notice replaces the lost output
+    private ConsoleSink newConsole() {
+        return ConsoleSink.create(new ConsoleSink.Listener() {
+            public void output(String text, long dropped) {
+                jsGate.triggerOff("java.System.out", dropped > 0 ? "\n[... " + dropped + " octets perdus ...]\n" + text : text);
+            }
+        });
+    }
+
+    private volatile ConsoleSink defaultConsole = null;
+    private PrintStream originalOut = null, originalErr = null;
+
     /**
      * Compile an JVS Code.
+     * <p>The code is compiled in memory, the returned class name can be given to {@link #exec(String)}.</p>
+     * <p>A code already compiled is taken from the compilation cache, the returned class name is then the one of the first compilation.</p>
+     * <p>Each call registers its own compiled class, which stays available until it is given to {@link #release(String)} ;
+     * use {@link #compileIncremental(String, String)} to have the previous class of an editor released and concurrent calls coalesced.</p>
      *
      * @param code What have we to compile
      * @return A compilation's JSon describer :
-     *         {success:true,compiledClass:"path to compiled .class"}
+     *         {success:true,compiledClass:"name of the compiled class",diagnostics:[{file:"..",line:1,column:1,code:"compiler.err..",message:".."}, ..],console:".."}
      * @see FileManager#load(String)
      */
     public void compile(final String code) throws Exception {
@@ -52,19 +112,7 @@ public class Gateway extends JavaGate {
             runInNewThreadWithAllRights(new Runnable() {
                 @Override
                 public void run() {
-                    String javaCode = getJVSTranslator().translate(code), javaClass = getJVSTranslator().getClassName();
-                    File tmpDir = FileManager.createTempDir("jvs-compile-" + javaClass);
-                    String javaFile = tmpDir.getAbsolutePath() + File.separatorChar + javaClass + ".java";
-                    FileManager.save(javaFile, javaCode);
-                    String[] java = new String[1], path = new String[1];
-                    java[0] = javaFile;
-                    path[0] = jar();
-                    boolean success = Java2Class.compile(java, false, path);
-                    JSONObject r = new JSONObject();
-                    r.put("success", success);
-                    r.put("compiledClass", javaFile.replace(".java", ".class"));
-                    r.put("console", systemOutputController.getResult());
-                    jsGate.triggerOff("javascool.compiled", r);
+                    jsGate.triggerOff("javascool.compiled", service.compile(code));
                 }
             });
 
@@ -74,49 +122,65 @@ public class Gateway extends JavaGate {
         }
     }
 
-    public void execInPrivateThread(final String location) {
+    /**
+     * Compile an JVS Code being edited, incrementally.
+     * <p>Each editor session keeps its last compilation: if the code only changed in comments or layout, this compilation is reused without calling javac.
+     * Calls made while the session is compiling are coalesced, only the latest code is compiled and notified.</p>
+     *
+     * @param session The editor session identifier
+     * @param code    What have we to compile
+     * @return A compilation's JSon describer, as for {@link #compile(String)}, with also :
+     *         {session:"..",reused:false,changedMembers:["void main()", ..]}
+     * @see #closeSession(String)
+     */
+    public void compileIncremental(final String session, final String code) throws Exception {
         assertSafeUsage();
-        Thread t = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    String r = exec(location);
-                    if (!r.equals("")) {
-                        RuntimeException exception = new RuntimeException(r);
-                        popException(exception);
+        try {
+            runInNewThreadWithAllRights(new Runnable() {
+                @Override
+                public void run() {
+                    JSONObject r = service.compileIncremental(session, code);
+                    if (r != null) {
+                        jsGate.triggerOff("javascool.compiled", r);
                     }
-                } catch (Exception e) {
-                    popException(e);
                 }
-            }
-        }, "JVSExecThread");
-        t.start();
+            });
+        } catch (Exception e) {
+            popException(e);
+            throw e;
+        }
     }
 
     /**
-     * Exec a compiled Runnable.
+     * Forget the state of an editor session, and release its last compiled class.
      *
-     * @param location Which class
-     * @return The System.out and System.err threads
-     * @see FileManager#load(String)
+     * @param session The editor session identifier
      */
-    public String exec(final String location) throws Exception {
+    public void closeSession(String session) {
+        service.closeSession(session);
+    }
+
+    /**
+     * Compile many JVS codes, as independent programs, in one compiler invocation.
+     * <p>Codes already compiled are taken from the compilation cache, the other ones are compiled together.</p>
+     * <p>The compiled classes stay available until they are given to {@link #release(String)}.</p>
+     *
+     * @param codes A JSon array of the JVS codes to compile
+     * @return A JSon array of compilation's describers, in the order of the codes :
+     *         [{success:true,compiledClass:"name of the compiled class",classes:["class names"],diagnostics:[..],console:"compilation errors"}, ..]
+     */
+    public String compileBatch(final String codes) throws Exception {
         assertSafeUsage();
         try {
-            return AccessController.doPrivileged(
+            return Privileges.run(
                     new PrivilegedAction<String>() {
-                        private String result = "";
-
                         public String run() {
-                            Runnable clazz = Java2Class.load(location);
                             try {
-                                clazz.run();
-                            } catch (Throwable e) {
-                                return e.toString();
+                                return service.compileBatch((JSONArray) new JSONParser().parse(codes)).toJSONString();
+                            } catch (ParseException e) {
+                                throw new IllegalArgumentException("Invalid JSon array of codes : " + e);
                             }
-                            return "";
                         }
-
                     }
             );
         } catch (Exception e) {
@@ -126,17 +190,133 @@ public class Gateway extends JavaGate {
     }
 
     /**
-     * Return the Jvs2Java translator.
-     * Call this function only form an AccessController.doPrivileged()
+     * Exec a compiled Runnable on the execution engine.
+     * <p>At most <tt>webjavac.execThreads</tt> programs run at once, and <tt>webjavac.execQueue</tt> wait for their turn,
+     * beyond that the execution is refused. When the program ends, the <tt>javascool.executed</tt> event is triggered.</p>
+     * <p>The program output is sent while it runs, as <tt>java.System.out</tt> events, in chunks every <tt>webjavac.consolePeriod</tt> milliseconds;
+     * at most <tt>webjavac.consoleSize</tt> bytes are kept between two chunks.</p>
+     *
+     * @param location Which class : a class compiled in memory or the path of a .class file
+     * @return An execution's JSon describer, given with the event :
+     *         {compiledClass:"..",success:true,error:"",queueWait:0,runTime:0,cpuTime:0,wallTime:0,allocatedBytes:0,exceeded:null},
+     *         times are in milliseconds, exceeded is the budget exceeded by the run : "cpuTime", "wallTime", "allocatedBytes" or null
+     * @see ProgramExecution
      */
-    private Jvs2Java getJVSTranslator() {
-        if (translator == null) {
-            translator = new Jvs2Java();
+    public void execInPrivateThread(final String location) {
+        assertSafeUsage();
+        final ProgramExecution execution = new ProgramExecution(location, defaultConsole == null ? null : ProgramExecution.toPrintStream(newConsole())) {
+            @Override
+            protected void done() {
+                executions.remove(this);
+                if (!isCancelled() && !getError().equals("")) {
+                    popException(new RuntimeException(getError()));
+                }
+                jsGate.triggerOff("javascool.executed", toJSON());
+            }
+        };
+        executions.add(execution);
+        try {
+            ExecutionEngine.getDefault().submit(execution);
+        } catch (RejectedExecutionException e) {
+            executions.remove(execution);
+            popException(e);
         }
-        return translator;
     }
 
-    private Jvs2Java translator;
+    /**
+     * Stop the programs started by {@link #execInPrivateThread(String)} which are waiting or running.
+     * <p>A waiting program is not started, a running one is interrupted : it stops at its next loop turn, or its next call to <tt>sleep</tt>.</p>
+     *
+     * @return The number of stopped programs
+     */
+    public int stopPrograms() {
+        int stopped = 0;
+        for (Execution execution : executions)
+            if (execution.cancel(true)) {
+                stopped++;
+            }
+        return stopped;
+    }
+
+    // The executions started by this gateway and not yet finished
+    private final Set<Execution> executions = Collections.newSetFromMap(new ConcurrentHashMap<Execution, Boolean>());
+
+    /**
+     * Return the execution engine statistics.
+     *
+     * @return A JSon describer : {threads:4,virtual:false,active:0,queued:0,completed:0,rejected:0,totalQueueWait:0,totalRunTime:0}, times are in milliseconds
+     */
+    public String getExecutionStats() {
+        return service.getExecutionStats().toJSONString();
+    }
+
+    /**
+     * Exec a compiled Runnable, and wait for its end.
+     * <p>The program runs on a thread of the execution engine, never on the calling thread, and is supervised :
+     * it is stopped if it exceeds its CPU time, wall time or allocation budget. The applet has no budget by default, so that interactive programs can wait for their user ;
+     * budgets are set by the <tt>webjavac.maxCpuTime</tt>, <tt>webjavac.maxWallTime</tt> and <tt>webjavac.maxAllocatedBytes</tt> properties.</p>
+     *
+     * @param location Which class : a class compiled in memory or the path of a .class file
+     * @return The error which ended the run, or the budget exceeded, or an empty string on success
+     * @see FileManager#load(String)
+     * @see ExecutionSupervisor
+     */
+    public String exec(final String location) throws Exception {
+        assertSafeUsage();
+        ProgramExecution execution = new ProgramExecution(location, null);
+        try {
+            ExecutionEngine.getDefault().submit(execution).get();
+        } catch (InterruptedException e) {
+            execution.cancel(true);
+            popException(e);
+            throw e;
+        } catch (Exception e) {
+            popException(e);
+            throw e;
+        }
+        return execution.getError();
+    }
+
+    /**
+     * Release a class compiled by {@link #compile(String)} or {@link #compileBatch(String)}, it can not be executed anymore.
+     * <p>Its bytecode is forgotten, and the loaded classes are unloaded as soon as no program uses them.</p>
+     *
+     * @param className The name of the compiled class
+     */
+    public void release(String className) {
+        service.release(className);
+    }
+
+    /**
+     * Return the statistics of the loaded programs.
+     *
+     * @return A JSon describer : {registered:0,liveLoaders:0,liveClasses:0,createdLoaders:0,metaspaceUsed:0},
+     *         registered is the number of compiled classes which can be executed, metaspaceUsed is in bytes or -1 if unknown
+     */
+    public String getProgramStats() {
+        return service.getProgramStats().toJSONString();
+    }
+
+    /**
+     * Return the compilation cache statistics.
+     *
+     * @return A JSon describer : {hits:0,misses:0,count:0,size:0,maxSize:0}, sizes are in bytes
+     */
+    public String getCompilationCacheStats() {
+        return service.getCompilationCacheStats().toJSONString();
+    }
+
+    /**
+     * Set the memory ceiling of the compilation cache.
+     *
+     * @param maxSize The maximal estimated size in bytes, 0 to disable the cache
+     */
+    public void setCompilationCacheSize(long maxSize) {
+        service.setCompilationCacheSize(maxSize);
+    }
+
+    // The compile pipeline
+    private final CompileService service = new CompileService();
 
     /**
      * Retrouve le chemin du jar courant.
@@ -145,45 +325,7 @@ public class Gateway extends JavaGate {
      * @throws RuntimeException lorsque l'application n'a pas été démarré depuis un jar
      */
     public static String jar() {
-        if (javascoolJar != null) {
-            return javascoolJar;
-        }
-        String url = Gateway.class.getResource("").toString().replaceFirst("jar:file:([^!]*)!.*", "$1");
-        System.err.println("Notice: javascool url is " + url);
-        if (url.endsWith(".jar")) {
-            try {
-                String jar = URLDecoder.decode(url, "UTF-8");
-                if (new File(jar).exists()) {
-                    return javascoolJar = jar;
-                }
-                // Ici on essaye tous les encodages possibles pour essayer de détecter javascool
-                {
-                    jar = URLDecoder.decode(url, Charset.defaultCharset().name());
-                    if (new File(jar).exists()) {
-                        javascoolJarEnc = Charset.defaultCharset().name();
-                        return jar;
-                    }
-                    for (String enc : Charset.availableCharsets().keySet()) {
-                        jar = URLDecoder.decode(url, enc);
-                        if (new File(jar).exists()) {
-                            javascoolJarEnc = enc;
-                            System.err.println("Notice: javascool file " + jar + " correct decoding as " + enc);
-                            return javascoolJar = jar;
-                        } else {
-                            System.err.println("Notice: javascool file " + jar + " wrong decoding as " + enc);
-                        }
-                    }
-                    throw new RuntimeException("Il y a un bug d'encoding sur cette plate forme");
-                }
-            } catch (UnsupportedEncodingException ex) {
-                throw new RuntimeException("Spurious defaultCharset: this is a caveat");
-            }
-        } else {
-            return "";
-        }
-        // throw new RuntimeException("Java's cool n'a pas été démarré depuis un Jar");
+        return CompileService.jar();
     }
 
-    private static String javascoolJar = null, javascoolJarEnc = null;
-
 }
@@ -0,0 +1,77 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.webjavac;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.Collection;
+
+/**
+ * Builds the JSon describers returned by the gateway and the server.
+ * <p>The JSon objects and arrays of json-simple are raw maps and lists : filling them is an unchecked call.
+ * This is the single place where these calls are made, the other classes of the package then compile without unchecked warnings.</p>
+ *
+ * @author Philippe VIENNE
+ */
+final class Json {
+    // @factory
+    private Json() {
+    }
+
+    /**
+     * Set a value of a JSon object.
+     *
+     * @param object The JSon object
+     * @param name   The name of the value
+     * @param value  The value, a string, a number, a boolean, a JSon object or array, or null
+     * @return The JSon object
+     */
+    @SuppressWarnings("unchecked")
+    static JSONObject put(JSONObject object, String name, Object value) {
+        object.put(name, value);
+        return object;
+    }
+
+    /**
+     * Append a value to a JSon array.
+     *
+     * @param array The JSon array
+     * @param value The value, a string, a number, a boolean, a JSon object or array, or null
+     * @return The JSon array
+     */
+    @SuppressWarnings("unchecked")
+    static JSONArray add(JSONArray array, Object value) {
+        array.add(value);
+        return array;
+    }
+
+    /**
+     * Append values to a JSon array.
+     *
+     * @param array  The JSon array
+     * @param values The values
+     * @return The JSon array
+     */
+    @SuppressWarnings("unchecked")
+    static JSONArray addAll(JSONArray array, Collection<?> values) {
+        array.addAll(values);
+        return array;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.webjavac;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test client of the headless {@link Server}.
+ * <p>Each client compiles a program, runs it and releases it, in a loop, then the latencies and the throughput are printed.</p>
+ * <p>Usage : <tt>java -cp webjavac.jar org.javascool.webjavac.LoadTest [url [clients [cycles [distinct [isolated]]]]]</tt>,
+ * by default <tt>http://localhost:8080 4 25 false false</tt> ; if distinct is true, each cycle compiles a different program, which is not in the compilation cache,
+ * if isolated is true, the programs run in the worker processes of the server.</p>
+ *
+ * @author Philippe VIENNE
+ */
+public class LoadTest {
+    // @factory
+    private LoadTest() {
+    }
+
+    /**
+     * Run the load test, and print its results.
+     *
+     * @param usage The server url, the number of clients, the number of cycles per client, whether the programs are distinct, and whether they run isolated
+     */
+    public static void main(String[] usage) throws InterruptedException {
+        final String url = usage.length > 0 ? usage[0] : "http://localhost:8080";
+        int clients = usage.length > 1 ? Integer.parseInt(usage[1]) : 4;
+        final int cycles = usage.length > 2 ? Integer.parseInt(usage[2]) : 25;
+        final boolean distinct = usage.length > 3 && Boolean.parseBoolean(usage[3]);
+        final boolean isolated = usage.length > 4 && Boolean.parseBoolean(usage[4]);
+        final List<Long> compiles = Collections.synchronizedList(new ArrayList<Long>()), execs = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            threads[c] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < cycles; i++) {
+                        try {
+                            String code = "void main() {\n  println(\"Bonjour " + (distinct ? client + " " + i : "") + "\");\n}\n";
+                            JSONObject request = new JSONObject();
+                            Json.put(request, "code", code);
+                            long t0 = System.nanoTime();
+                            JSONObject compilation = post(url + "/compile", request.toJSONString());
+                            long t1 = System.nanoTime();
+                            compiles.add(t1 - t0);
+                            if (!Boolean.TRUE.equals(compilation.get("success"))) {
+                                errors.incrementAndGet();
+                                continue;
+                            }
+                            request = new JSONObject();
+                            Json.put(request, "compiledClass", compilation.get("compiledClass"));
+                            if (isolated) {
+                                Json.put(request, "isolated", true);
+                            }
+                            JSONObject execution = post(url + "/exec", request.toJSONString());
+                            execs.add(System.nanoTime() - t1);
+                            if (!Boolean.TRUE.equals(execution.get("success"))) {
+                                errors.incrementAndGet();
+                            }
+                            if (distinct) {
+                                post(url + "/release", request.toJSONString());
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[c].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("clients=" + clients + " cycles=" + clients * cycles + " distinct=" + distinct + " isolated=" + isolated + " errors=" + errors.get() +
+                " time=" + Math.round(seconds * 1000) + "ms throughput=" + Math.round(execs.size() / seconds * 10) / 10.0 + " cycles/s");
+        System.out.println("compile " + percentiles(compiles));
+        System.out.println("exec    " + percentiles(execs));
+    }
+
+    // Posts a JSon request, and returns the JSon answer
+    private static JSONObject post(String url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                bytes.write(buffer, 0, n);
+            }
+            return (JSONObject) JSONValue.parse(bytes.toString("UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    // Returns the latency percentiles, in milliseconds
+    private static String percentiles(List<Long> latencies) {
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        if (sorted.isEmpty()) {
+            return "no request";
+        }
+        return "p50=" + sorted.get(sorted.size() / 2) / 1000000 + "ms p95=" + sorted.get(sorted.size() * 95 / 100) / 1000000 +
+                "ms p99=" + sorted.get(sorted.size() * 99 / 100) / 1000000 + "ms max=" + sorted.get(sorted.size() - 1) / 1000000 + "ms";
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.webjavac;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+/**
+ * Runs the actions of the gateway with the permissions of the signed applet.
+ * <p>The methods of the {@link Gateway} are called from JavaScript with the permissions of the page, which can neither compile nor load classes :
+ * the compile and execution pipeline must then run with the permissions of the applet code. This is the single place where they are raised.</p>
+ *
+ * @author Philippe VIENNE
+ */
+final class Privileges {
+    // @factory
+    private Privileges() {
+    }
+
+    /**
+     * Run an action with the permissions of the applet.
+     * <p><tt>AccessController</tt> is deprecated for removal with the security manager since Java 17 ; it is still needed by the applet,
+     * and without a security manager the action is simply run.</p>
+     *
+     * @param action The action to run
+     * @return The value returned by the action
+     */
+    @SuppressWarnings("removal")
+    static <T> T run(PrivilegedAction<T> action) {
+        return AccessController.doPrivileged(action);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.webjavac;
+
+import org.javascool.core.Compilation;
+import org.javascool.core.ConsoleMultiplexer;
+import org.javascool.core.ConsoleSink;
+import org.javascool.core.Execution;
+import org.javascool.core.ExecutionEngine;
+import org.javascool.core.ExecutionSupervisor;
+import org.javascool.core.Java2Class;
+import org.json.simple.JSONObject;
+
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.security.PrivilegedAction;
+
+/**
+ * The supervised execution of a compiled program, to be given to an {@link ExecutionEngine}.
+ * <p>The program output goes to its own console, and the run is stopped if it exceeds its budget, see {@link ExecutionSupervisor}.
+ * Runs given by location use the default supervisor, which has no budget unless the <tt>webjavac.max*</tt> properties are set.</p>
+ *
+ * @author Philippe VIENNE
+ */
+public class ProgramExecution extends Execution {
+    /**
+     * Define the execution of a compiled program.
+     *
+     * @param location Which class : a class compiled in memory or the path of a .class file
+     * @param console  The console of the program, closed at the end of the run, or null to keep the default console
+     */
+    public ProgramExecution(final String location, final PrintStream console) {
+        this(location, null, console, ExecutionSupervisor.getDefault(), new Result());
+    }
+
+    /**
+     * Define the execution of a compilation, without looking up its class by name.
+     *
+     * @param compilation The result of a successful compilation
+     * @param console     The console of the program, closed at the end of the run, or null to keep the default console
+     * @param supervisor  The supervisor enforcing the budget of the run
+     */
+    public ProgramExecution(final Compilation compilation, final PrintStream console, final ExecutionSupervisor supervisor) {
+        this(compilation.getClassName(), compilation, console, supervisor, new Result());
+    }
+
+    private ProgramExecution(final String location, final Compilation compilation, final PrintStream console, final ExecutionSupervisor supervisor, final Result result) {
+        super("JVSExecThread", new Runnable() {
+            @Override
+            public void run() {
+                ConsoleMultiplexer.setContext(console);
+                try {
+                    result.usage = Privileges.run(
+                            new PrivilegedAction<ExecutionSupervisor.Usage>() {
+                                public ExecutionSupervisor.Usage run() {
+                                    return supervisor.run(compilation != null ? Java2Class.load(compilation) : Java2Class.load(location));
+                                }
+                            }
+                    );
+                    result.error = result.usage.getMessage();
+                } catch (Exception e) {
+                    result.error = e.toString();
+                } finally {
+                    ConsoleMultiplexer.setContext(null);
+                    if (console != null) {
+                        console.close();
+                    }
+                }
+            }
+        });
+        this.location = location;
+        this.result = result;
+    }
+
+    private final String location;
+    private final Result result;
+
+    // The outcome of the run, filled by the program thread
+    private static class Result {
+        private volatile ExecutionSupervisor.Usage usage = null;
+        private volatile String error = "";
+    }
+
+    /**
+     * Return the error which ended the run, or the budget exceeded, or an empty string on success or if the run is not finished.
+     */
+    public String getError() {
+        return result.error;
+    }
+
+    /**
+     * Return the resources used by the run, or null if it is not finished.
+     */
+    public ExecutionSupervisor.Usage getUsage() {
+        return result.usage;
+    }
+
+    /**
+     * Return the execution's JSon describer.
+     *
+     * @return {compiledClass:"..",success:true,error:"",queueWait:0,runTime:0,cpuTime:0,wallTime:0,allocatedBytes:0,exceeded:null},
+     *         times are in milliseconds, exceeded is the budget exceeded by the run : "cpuTime", "wallTime", "allocatedBytes" or null
+     */
+    public JSONObject toJSON() {
+        JSONObject r = new JSONObject();
+        Json.put(r, "compiledClass", location);
+        Json.put(r, "success", !isCancelled() && result.error.equals(""));
+        Json.put(r, "error", isCancelled() ? "cancelled" : result.error);
+        Json.put(r, "queueWait", getQueueWait());
+        Json.put(r, "runTime", getRunTime());
+        ExecutionSupervisor.Usage usage = result.usage;
+        if (usage != null) {
+            Json.put(r, "cpuTime", usage.getCpuTime());
+            Json.put(r, "wallTime", usage.getWallTime());
+            Json.put(r, "allocatedBytes", usage.getAllocatedBytes());
+            Json.put(r, "exceeded", usage.getExceeded());
+        }
+        return r;
+    }
+
+    /**
+     * Wrap a console in an UTF-8 print stream, to be given as the console of a program.
+     *
+     * @param console The console
+     * @return The print stream writing to the console
+     */
+    public static PrintStream toPrintStream(ConsoleSink console) {
+        try {
+            return new PrintStream(console, true, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.webjavac;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.javascool.core.ConsoleMultiplexer;
+import org.javascool.core.ConsoleSink;
+import org.javascool.core.Compilation;
+import org.javascool.core.ExecutionEngine;
+import org.javascool.core.ExecutionSupervisor;
+import org.javascool.core.WorkerPool;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONAware;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless HTTP server of the compile and execution pipeline, for use without a browser applet.
+ * <p>The connections are accepted and read by the non-blocking dispatcher of the JDK embedded HTTP server,
+ * the requests are handled by a bounded pool of workers. The endpoints take and return JSon, with the shapes of the {@link Gateway} methods :</p>
+ * <ul>
+ * <li><tt>POST /compile {code:"..",session:".."}</tt> : as {@link Gateway#compile(String)}, or {@link Gateway#compileIncremental(String, String)} if a session is given.
+ * Without a session the compiled class stays available until it is released.
+ * A session call coalesced into a call in progress returns <tt>{session:"..",coalesced:true}</tt>.</li>
+ * <li><tt>POST /batch ["code", ..]</tt> : as {@link Gateway#compileBatch(String)}.</li>
+ * <li><tt>POST /exec {compiledClass:".."}</tt> : runs the program on the execution engine and waits for its end, returns the describer of {@link Gateway#execInPrivateThread(String)}
+ * with also <tt>console:".."</tt>, the first <tt>webjavac.consoleSize</tt> characters of the output.
+ * With <tt>isolated:true</tt>, the program runs in a separate pre-started JVM of the default {@link WorkerPool} instead, and the answer also has <tt>crashed:false</tt>.</li>
+ * <li><tt>POST /release {compiledClass:".."}</tt> and <tt>POST /closeSession {session:".."}</tt> : release a compiled class, or an editor session.</li>
+ * <li><tt>GET /stats</tt> : <tt>{executions:{..},programs:{..},compilationCache:{..},server:{threads:8,active:0,queued:0,requests:0,rejected:0}}</tt>,
+ * with also <tt>workers:{idle:4,runs:0,started:4,recycled:0,crashed:0}</tt> once an isolated execution has started the worker pool.</li>
+ * </ul>
+ * <p>Errors are returned as <tt>{error:".."}</tt>, with the status 400 for an invalid request, 413 for a request body of more than <tt>webjavac.maxRequestSize</tt> bytes
+ * (by default 1 MB), 503 when the execution engine is full, 500 otherwise.</p>
+ * <p>Only the classes compiled through this server, and not yet released, can be run or released : a request naming another class is refused.
+ * Beyond <tt>webjavac.maxPrograms</tt> (by default 1000) classes compiled without a session, the least recently used ones are released.</p>
+ * <p>Usage : <tt>java -Djava.awt.headless=true -cp webjavac.jar org.javascool.webjavac.Server [port]</tt>, the port is 8080 by default,
+ * the pool is configured by the <tt>webjavac.serverThreads</tt> (by default twice the number of processors) and <tt>webjavac.serverQueue</tt> (by default 64) properties.
+ * Each run is limited by the budgets of {@link ExecutionSupervisor#getHeadless()}, by default 10 s of CPU time, 60 s and 1 GB allocated.
+ * The server listens to the loopback address, unless another address is given by the <tt>webjavac.serverAddress</tt> property, e.g. <tt>0.0.0.0</tt> :
+ * the server runs the code it is sent, it must then be put behind an authenticating proxy.</p>
+ *
+ * @author Philippe VIENNE
+ * @see LoadTest
+ */
+public class Server {
+    /**
+     * Create a server listening to the loopback address only.
+     *
+     * @param port      The port to listen to, 0 for any free port
+     * @param threads   The number of workers
+     * @param queueSize The maximal number of requests waiting for a worker, beyond that the connection is closed
+     * @throws IOException If the port can not be listened to
+     */
+    public Server(int port, int threads, int queueSize) throws IOException {
+        this(InetAddress.getLoopbackAddress(), port, threads, queueSize);
+    }
+
+    /**
+     * Create a server.
+     * <p>The server runs the code it is sent : it must not listen to a public address without an authenticating proxy in front of it.</p>
+     *
+     * @param address   The address to listen to
+     * @param port      The port to listen to, 0 for any free port
+     * @param threads   The number of workers
+     * @param queueSize The maximal number of requests waiting for a worker, beyond that the connection is closed
+     * @throws IOException If the port can not be listened to
+     */
+    public Server(InetAddress address, int port, int threads, int queueSize) throws IOException {
+        workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                ConsoleMultiplexer.withoutContext(new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "JVSServerThread-" + threadCount.incrementAndGet());
+                    }
+                })) {
+            @Override
+            public void execute(Runnable command) {
+                try {
+                    super.execute(command);
+                } catch (RejectedExecutionException e) {
+                    rejected.incrementAndGet();
+                    throw e;
+                }
+            }
+        };
+        workers.allowCoreThreadTimeOut(true);
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.setExecutor(workers);
+        server.createContext("/compile", new Endpoint() {
+            public JSONAware answer(Object request) {
+                JSONObject parameters = toObject(request);
+                String code = getString(parameters, "code"), session = (String) parameters.get("session");
+                if (session == null) {
+                    return service.compile(code);
+                }
+                JSONObject r = service.compileIncremental(session, code);
+                if (r == null) {
+                    r = new JSONObject();
+                    Json.put(r, "session", session);
+                    Json.put(r, "coalesced", true);
+                }
+                return r;
+            }
+        });
+        server.createContext("/batch", new Endpoint() {
+            public JSONAware answer(Object request) {
+                if (!(request instanceof JSONArray)) {
+                    throw new IllegalArgumentException("A JSon array of codes is expected");
+                }
+                return service.compileBatch((JSONArray) request);
+            }
+        });
+        server.createContext("/exec", new Endpoint() {
+            public JSONAware answer(Object request) throws Exception {
+                JSONObject parameters = toObject(request);
+                String location = getString(parameters, "compiledClass");
+                return Boolean.TRUE.equals(parameters.get("isolated")) ? execIsolated(location) : exec(location);
+            }
+        });
+        server.createContext("/release", new Endpoint() {
+            public JSONAware answer(Object request) {
+                service.release(getString(toObject(request), "compiledClass"));
+                return new JSONObject();
+            }
+        });
+        server.createContext("/closeSession", new Endpoint() {
+            public JSONAware answer(Object request) {
+                service.closeSession(getString(toObject(request), "session"));
+                return new JSONObject();
+            }
+        });
+        server.createContext("/stats", new Endpoint() {
+            public JSONAware answer(Object request) {
+                JSONObject r = new JSONObject(), s = new JSONObject();
+                Json.put(r, "executions", service.getExecutionStats());
+                Json.put(r, "programs", service.getProgramStats());
+                Json.put(r, "compilationCache", service.getCompilationCacheStats());
+                WorkerPool pool = workerPool;
+                if (pool != null) {
+                    JSONObject w = new JSONObject();
+                    Json.put(w, "idle", pool.getIdle());
+                    Json.put(w, "runs", pool.getRuns());
+                    Json.put(w, "started", pool.getStarted());
+                    Json.put(w, "recycled", pool.getRecycled());
+                    Json.put(w, "crashed", pool.getCrashed());
+                    Json.put(r, "workers", w);
+                }
+                Json.put(s, "threads", workers.getMaximumPoolSize());
+                Json.put(s, "active", workers.getActiveCount());
+                Json.put(s, "queued", workers.getQueue().size());
+                Json.put(s, "requests", requests.get());
+                Json.put(s, "rejected", rejected.get());
+                Json.put(r, "server", s);
+                return r;
+            }
+        });
+    }
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+    private final CompileService service = new CompileService();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong(), rejected = new AtomicLong();
+    private volatile WorkerPool workerPool = null;
+    private final int maxRequestSize = Math.max(1, Integer.getInteger("webjavac.maxRequestSize", 1024 * 1024));
+
+    /**
+     * Start the server.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop the server.
+     *
+     * @param delay The maximal time to wait for the requests in progress, in seconds
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        workers.shutdown();
+        if (workerPool != null) {
+            workerPool.close();
+        }
+    }
+
+    /**
+     * Return the port listened to.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Return the address listened to.
+     */
+    public InetAddress getAddress() {
+        return server.getAddress().getAddress();
+    }
+
+    // Returns a class compiled by this server, the other classes and the class files can not be run
+    private Compilation getCompilation(String location) {
+        Compilation compilation = service.getCompilation(location);
+        if (compilation == null) {
+            throw new IllegalArgumentException("Unknown compiled class " + location);
+        }
+        return compilation;
+    }
+
+    // Runs a program on the execution engine, with its own console, and waits for its end
+    private JSONObject exec(String location) throws InterruptedException, ExecutionException {
+        final int limit = Integer.getInteger("webjavac.consoleSize", 64 * 1024);
+        final StringBuilder output = new StringBuilder();
+        ProgramExecution execution = new ProgramExecution(getCompilation(location), ProgramExecution.toPrintStream(ConsoleSink.create(new ConsoleSink.Listener() {
+            public void output(String text, long dropped) {
+                synchronized (output) {
+                    if (dropped > 0) {
+                        text = "\n[... " + dropped + " octets perdus ...]\n" + text;
+                    }
+                    output.append(text, 0, Math.max(0, Math.min(text.length(), limit - output.length())));
+                }
+            }
+        })), ExecutionSupervisor.getHeadless());
+        ExecutionEngine.getDefault().submit(execution).get();
+        JSONObject r = execution.toJSON();
+        synchronized (output) {
+            Json.put(r, "console", output.toString());
+        }
+        return r;
+    }
+
+    // Runs a program in a worker process of the default pool, started on first use, and waits for its end
+    private JSONObject execIsolated(String location) throws InterruptedException {
+        Compilation compilation = getCompilation(location);
+        synchronized (this) {
+            if (workerPool == null) {
+                workerPool = WorkerPool.getDefault();
+            }
+        }
+        WorkerPool.Result result = workerPool.run(compilation);
+        JSONObject r = new JSONObject();
+        Json.put(r, "compiledClass", location);
+        Json.put(r, "success", result.getError().equals(""));
+        Json.put(r, "error", result.getError());
+        Json.put(r, "cpuTime", result.getCpuTime());
+        Json.put(r, "wallTime", result.getWallTime());
+        Json.put(r, "allocatedBytes", result.getAllocatedBytes());
+        Json.put(r, "exceeded", result.getExceeded());
+        Json.put(r, "crashed", result.isCrashed());
+        Json.put(r, "console", result.getDropped() > 0 ? result.getOutput() + "\n[... " + result.getDropped() + " octets perdus ...]\n" : result.getOutput());
+        return r;
+    }
+
+    // Handles a request : parses its JSon body, and sends the JSon answer or error
+    private abstract class Endpoint implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            int status = 200;
+            JSONAware answer;
+            try {
+                boolean get = "GET".equals(exchange.getRequestMethod());
+                if (!get && !"POST".equals(exchange.getRequestMethod())) {
+                    throw new IllegalArgumentException("Unsupported method " + exchange.getRequestMethod());
+                }
+                String body = read(exchange, maxRequestSize);
+                answer = answer(get || body.trim().length() == 0 ? null : new JSONParser().parse(body));
+            } catch (RequestTooLargeException e) {
+                status = 413;
+                answer = error(e.getMessage());
+            } catch (ParseException e) {
+                status = 400;
+                answer = error("Invalid JSon request : " + e);
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                answer = error(e.getMessage());
+            } catch (RejectedExecutionException e) {
+                status = 503;
+                answer = error(e.getMessage());
+            } catch (Throwable e) {
+                status = 500;
+                answer = error(e.toString());
+            }
+            byte[] bytes = answer.toJSONString().getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        }
+
+        // Returns the answer to the parsed request, or null if there is no body
+        public abstract JSONAware answer(Object request) throws Exception;
+    }
+
+    // Reads the body of a request, up to a maximal size : a larger request is refused without reading it further
+    private static String read(HttpExchange exchange, int maxSize) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            if (length != null && Long.parseLong(length.trim()) > maxSize) {
+                throw new RequestTooLargeException(maxSize);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid Content-Length " + length);
+        }
+        InputStream in = exchange.getRequestBody();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                if (bytes.size() + n > maxSize) {
+                    throw new RequestTooLargeException(maxSize);
+                }
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    // Thrown when a request body is larger than webjavac.maxRequestSize
+    private static class RequestTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RequestTooLargeException(int maxSize) {
+            super("The request is larger than " + maxSize + " bytes");
+        }
+    }
+
+    private static JSONObject toObject(Object request) {
+        if (!(request instanceof JSONObject)) {
+            throw new IllegalArgumentException("A JSon object is expected");
+        }
+        return (JSONObject) request;
+    }
+
+    private static String getString(JSONObject parameters, String name) {
+        Object value = parameters.get(name);
+        if (!(value instanceof String)) {
+            throw new IllegalArgumentException("The string parameter " + name + " is expected");
+        }
+        return (String) value;
+    }
+
+    private static JSONObject error(String message) {
+        JSONObject r = new JSONObject();
+        Json.put(r, "error", message);
+        return r;
+    }
+
+    /**
+     * Start a server, the console output of each program goes to its answer, the other output goes to the standard output.
+     *
+     * @param usage The port to listen to, 8080 by default
+     */
+    public static void main(String[] usage) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        // Answers are written in one piece : sending them without waiting for the client acknowledgment avoids a 40 ms delay per request
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        System.setOut(new ConsoleMultiplexer(System.out));
+        System.setErr(new ConsoleMultiplexer(System.err));
+        String address = System.getProperty("webjavac.serverAddress");
+        Server server = new Server(address == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(address), usage.length > 0 ? Integer.parseInt(usage[0]) : 8080,
+                Integer.getInteger("webjavac.serverThreads", 2 * Runtime.getRuntime().availableProcessors()), Integer.getInteger("webjavac.serverQueue", 64));
+        server.start();
+        System.out.println("WebJavac server listening on " + server.getAddress().getHostAddress() + " port " + server.getPort());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * $file.name
+ *     Copyright (C) 2012  Philippe VIENNE
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.javascool.webjavac;
+
+import org.javascool.tools.FileManager;
+import org.json.simple.JSONObject;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Headless startup benchmark : measures the time from the JVM start to the first successful compilation.
+ * <p>The code goes through the same pipeline as {@link Gateway#compile(String)}, see {@link CompileService#compile(String)} : translation, then in memory compilation against the jar.
+ * It is also the training run of the class data sharing archive built by <tt>make cds</tt>, so that the archive holds the translator and compiler classes.</p>
+ * <p>Usage : <tt>java [-XX:SharedArchiveFile=webjavac.jsa] -cp webjavac.jar org.javascool.webjavac.StartupBenchmark [program.jvs ..]</tt></p>
+ *
+ * @author Philippe VIENNE
+ */
+public class StartupBenchmark {
+    // @factory
+    private StartupBenchmark() {
+    }
+
+    /**
+     * Compiles the given JVS programs, or a default one, and prints the startup times in milliseconds.
+     *
+     * @param usage The paths of the JVS programs to compile
+     */
+    public static void main(String[] usage) {
+        long main = ManagementFactory.getRuntimeMXBean().getUptime();
+        String[] codes = usage.length == 0 ? new String[]{"void main() {\n  println(\"Bonjour\");\n}\n"} : new String[usage.length];
+        for (int i = 0; i < usage.length; i++)
+            codes[i] = FileManager.load(usage[i]);
+        CompileService service = new CompileService();
+        long first = -1;
+        for (String code : codes) {
+            JSONObject compilation = service.compile(code);
+            if (!Boolean.TRUE.equals(compilation.get("success"))) {
+                throw new IllegalStateException("Compilation failed : " + compilation.get("diagnostics"));
+            }
+            if (first == -1) {
+                first = ManagementFactory.getRuntimeMXBean().getUptime();
+            }
+        }
+        long end = ManagementFactory.getRuntimeMXBean().getUptime();
+        System.out.println("{jvmToMain:" + main + ",firstCompile:" + first + ",allCompiles:" + end + ",programs:" + codes.length + "}");
+    }
+}